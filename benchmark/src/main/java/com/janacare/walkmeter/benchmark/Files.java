@@ -0,0 +1,27 @@
+package com.janacare.walkmeter.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Temporary directories for the benchmarks that write files
+ */
+final class Files {
+
+    private Files() {
+    }
+
+    static File createTempDirectory() throws IOException {
+        return java.nio.file.Files.createTempDirectory("walkmeter-bench").toFile();
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
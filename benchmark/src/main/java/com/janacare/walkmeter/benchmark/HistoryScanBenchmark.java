@@ -0,0 +1,143 @@
+package com.janacare.walkmeter.benchmark;
+
+import com.janacare.walkmeter.ActivitySegment;
+import com.janacare.walkmeter.ActivityTypes;
+import com.janacare.walkmeter.BinaryActivityLog;
+import com.janacare.walkmeter.HistoryPager;
+import com.janacare.walkmeter.MappedHistoryStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the detection history back, as loadLogFile did with a text file and as the
+ * history store and its binary archive do now. Results are per full scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryScanBenchmark {
+
+    // Number of recent records a history view loads
+    private static final int RECENT_RECORDS = 5000;
+
+    @Param({"100000"})
+    public int records;
+
+    private File mDir;
+    private File mTextFile;
+    private BinaryActivityLog mBinaryLog;
+    private MappedHistoryStore mHistoryStore;
+
+    @Setup(Level.Trial)
+    public void writeHistory() throws IOException {
+        mDir = Files.createTempDirectory();
+        mTextFile = new File(mDir, "history.log");
+        mBinaryLog = new BinaryActivityLog(new File(mDir, "history.bin"));
+        mHistoryStore = new MappedHistoryStore(new File(mDir, "history.dat"));
+
+        Samples samples = new Samples(records, 3);
+        SimpleDateFormat format = ActivitySegment.newDateFormat();
+        PrintWriter text = new PrintWriter(mTextFile);
+        for (int i = 0; i < records; i++) {
+            long timestamp = samples.timestamps[i];
+            int activityType = samples.activityTypes[i];
+            int confidence = samples.confidences[i];
+            text.println(ActivitySegment.formatLine(format, timestamp, activityType, confidence));
+            mHistoryStore.append(timestamp, activityType, confidence);
+        }
+        text.close();
+        mBinaryLog.archive(mHistoryStore);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteHistory() throws IOException {
+        mHistoryStore.close();
+        Files.deleteRecursively(mDir);
+    }
+
+    /**
+     * Line by line through a BufferedReader, keeping every line, as loadLogFile does
+     */
+    @Benchmark
+    public List<String> textLines() throws IOException {
+        List<String> content = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(mTextFile));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            content.add(line);
+        }
+        reader.close();
+        return content;
+    }
+
+    @Benchmark
+    public int binarySegments() throws IOException {
+        int onFoot = 0;
+        for (ActivitySegment segment : mBinaryLog.readSegments()) {
+            for (int i = 0; i < segment.size(); i++) {
+                if (segment.getActivityType(i) == ActivityTypes.ON_FOOT) {
+                    onFoot++;
+                }
+            }
+        }
+        return onFoot;
+    }
+
+    @Benchmark
+    public int mappedCursor() throws IOException {
+        int onFoot = 0;
+        MappedHistoryStore.Cursor cursor = mHistoryStore.newCursor();
+        int size = mHistoryStore.size();
+        for (int i = 0; i < size; i++) {
+            cursor.moveTo(i);
+            if (cursor.getActivityType() == ActivityTypes.ON_FOOT) {
+                onFoot++;
+            }
+        }
+        return onFoot;
+    }
+
+    /**
+     * The last RECENT_RECORDS records, as LogFile.loadActivityLog() reads them
+     */
+    @Benchmark
+    public int pagedRecent() throws IOException {
+        int onFoot = 0;
+        HistoryPager pager = new HistoryPager(mHistoryStore);
+        pager.seekFromEnd(RECENT_RECORDS);
+        ActivitySegment page = new ActivitySegment(256);
+        while (pager.nextPage(page) > 0) {
+            for (int i = 0; i < page.size(); i++) {
+                if (page.getActivityType(i) == ActivityTypes.ON_FOOT) {
+                    onFoot++;
+                }
+            }
+        }
+        return onFoot;
+    }
+}
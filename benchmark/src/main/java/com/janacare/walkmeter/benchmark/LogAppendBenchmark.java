@@ -0,0 +1,103 @@
+package com.janacare.walkmeter.benchmark;
+
+import com.janacare.walkmeter.ActivityRecordWriter;
+import com.janacare.walkmeter.LogLineEncoder;
+import com.janacare.walkmeter.MappedHistoryStore;
+import com.janacare.walkmeter.TextFileSink;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append throughput of the activity log. LogFile itself needs an Android Context, so this
+ * measures the sinks it writes through, next to the open-write-close pattern LogFile.log
+ * used before. Results are per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogAppendBenchmark {
+
+    private static final int SAMPLE_COUNT = 1024;
+
+    private static final String LINE =
+            "2026-10-18 09:41:20.000+0000;;Log: timestamp: 2 type on_foot confidence 87";
+
+    private Samples mSamples;
+    private LogLineEncoder mLine;
+    private int mNext;
+
+    private File mDir;
+    private File mReopenedFile;
+    private TextFileSink mTextSink;
+    private ActivityRecordWriter mRecordWriter;
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        mSamples = new Samples(SAMPLE_COUNT, 11);
+        mLine = new LogLineEncoder().encode(mSamples.timestamps[0], 2, 87);
+        mDir = Files.createTempDirectory();
+        mReopenedFile = new File(mDir, "reopened.log");
+        mTextSink = new TextFileSink(new File(mDir, "text.log"), 16, 60000);
+
+        mRecordWriter = new ActivityRecordWriter();
+        mRecordWriter.addSink(new MappedHistoryStore(new File(mDir, "history.dat")));
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        mTextSink.close();
+        mRecordWriter.close();
+        Files.deleteRecursively(mDir);
+    }
+
+    /**
+     * A new FileWriter for every line, as LogFile.log did before it kept its writer open
+     */
+    @Benchmark
+    public void reopenPerLine() throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(mReopenedFile, true));
+        writer.println(LINE);
+        writer.flush();
+        writer.close();
+    }
+
+    @Benchmark
+    public void textSink() throws IOException {
+        int i = next();
+        mTextSink.write(mSamples.timestamps[i], mSamples.activityTypes[i],
+                mSamples.confidences[i], mLine);
+    }
+
+    @Benchmark
+    public void mappedSink() {
+        int i = next();
+        mRecordWriter.write(mSamples.timestamps[i], mSamples.activityTypes[i],
+                mSamples.confidences[i]);
+    }
+
+    private int next() {
+        int i = mNext;
+        mNext = (i + 1) & (SAMPLE_COUNT - 1);
+        return i;
+    }
+}
@@ -0,0 +1,88 @@
+package com.janacare.walkmeter.benchmark;
+
+import com.janacare.walkmeter.ActivitySegment;
+import com.janacare.walkmeter.ActivityTypes;
+import com.janacare.walkmeter.LogLineEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting of the log line written for every probable activity in
+ * logActivityRecognitionResult. Results are per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogLineBenchmark {
+
+    private static final int SAMPLE_COUNT = 1024;
+
+    private Samples mSamples;
+    private SimpleDateFormat mDateFormat;
+    private LogLineEncoder mEncoder;
+    private int mNext;
+
+    @Setup
+    public void createSamples() {
+        mSamples = new Samples(SAMPLE_COUNT, 7);
+        mDateFormat = ActivitySegment.newDateFormat();
+        mEncoder = new LogLineEncoder();
+    }
+
+    /**
+     * The line as it was built before the write path was unified: a timestamp, the
+     * delimiter and a format string, as getString(R.string.log_message, ...) does
+     */
+    @Benchmark
+    public String formatWithStringFormat() {
+        int i = next();
+        int activityType = mSamples.activityTypes[i];
+        return mDateFormat.format(new Date(mSamples.timestamps[i]))
+                + ";;"
+                + String.format("Log: timestamp: %1$s type %2$s confidence %3$d",
+                        activityType, ActivityTypes.getName(activityType),
+                        (int) mSamples.confidences[i]);
+    }
+
+    /**
+     * The line as the history view builds it, one String per line
+     */
+    @Benchmark
+    public String formatLine() {
+        int i = next();
+        return ActivitySegment.formatLine(mDateFormat, mSamples.timestamps[i],
+                mSamples.activityTypes[i], mSamples.confidences[i]);
+    }
+
+    /**
+     * The line as ActivityRecordWriter builds it, in the reused encoder buffer
+     */
+    @Benchmark
+    public LogLineEncoder encode() {
+        int i = next();
+        return mEncoder.encode(mSamples.timestamps[i], mSamples.activityTypes[i],
+                mSamples.confidences[i]);
+    }
+
+    private int next() {
+        int i = mNext;
+        mNext = (i + 1) & (SAMPLE_COUNT - 1);
+        return i;
+    }
+}
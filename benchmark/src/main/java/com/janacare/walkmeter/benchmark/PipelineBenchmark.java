@@ -0,0 +1,81 @@
+package com.janacare.walkmeter.benchmark;
+
+import com.janacare.walkmeter.ActivityPipeline;
+import com.janacare.walkmeter.RollupStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The minute-bucket algorithm of countOnFootTime, as run by ActivityPipeline. Results are
+ * per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final int BATCH_SIZE = 1 << 20;
+
+    private Samples mSamples;
+    private ActivityPipeline mPipeline;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void createSamples() {
+        mSamples = new Samples(BATCH_SIZE, 42);
+    }
+
+    @Setup(Level.Iteration)
+    public void rewind() {
+        mNext = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int ingestBatch() {
+        ActivityPipeline pipeline = new ActivityPipeline();
+        return pipeline.ingest(mSamples.timestamps, mSamples.activityTypes,
+                mSamples.confidences, BATCH_SIZE);
+    }
+
+    /**
+     * The batch again, with the rollups updated from every closed bucket
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int ingestBatchWithRollups() {
+        ActivityPipeline pipeline = new ActivityPipeline();
+        pipeline.addBucketListener(new RollupStore());
+        return pipeline.ingest(mSamples.timestamps, mSamples.activityTypes,
+                mSamples.confidences, BATCH_SIZE);
+    }
+
+    @Benchmark
+    public boolean processOne() {
+        int i = mNext;
+        mNext = (i + 1) & (BATCH_SIZE - 1);
+
+        // Start over when the samples wrap around, so time keeps moving forward
+        if (i == 0) {
+            mPipeline = new ActivityPipeline();
+        }
+        return mPipeline.process(mSamples.timestamps[i], mSamples.activityTypes[i],
+                mSamples.confidences[i]);
+    }
+}
@@ -0,0 +1,60 @@
+package com.janacare.walkmeter.benchmark;
+
+import com.janacare.walkmeter.ActivityTypes;
+
+import java.util.Random;
+
+/**
+ * Synthetic detection streams shaped like the real ones: one detection every 20 seconds,
+ * with the activity changing every few minutes.
+ */
+final class Samples {
+
+    // Time of the first sample
+    static final long START_MILLIS = 1760000000000L;
+
+    // Time between two detections
+    static final long INTERVAL_MILLIS = 20000;
+
+    final long[] timestamps;
+    final byte[] activityTypes;
+    final byte[] confidences;
+
+    // The confidence of every activity type of each detection, one row of
+    // ActivityTypes.COUNT per detection, as read from getProbableActivities()
+    final int[] probableConfidences;
+
+    Samples(int count, long seed) {
+        timestamps = new long[count];
+        activityTypes = new byte[count];
+        confidences = new byte[count];
+        probableConfidences = new int[count * ActivityTypes.COUNT];
+
+        Random random = new Random(seed);
+        long time = START_MILLIS;
+        int activity = ActivityTypes.STILL;
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(12) == 0) {
+                activity = random.nextInt(ActivityTypes.COUNT);
+            }
+            time += INTERVAL_MILLIS + random.nextInt(2000) - 1000;
+            timestamps[i] = time;
+            activityTypes[i] = (byte) activity;
+            confidences[i] = (byte) (40 + random.nextInt(61));
+
+            // The rest of the confidence goes to one other activity, and one detection in
+            // ten is a noisy reading that puts another activity on top
+            int row = i * ActivityTypes.COUNT;
+            int other = (activity + 1 + random.nextInt(ActivityTypes.COUNT - 1))
+                    % ActivityTypes.COUNT;
+            int top = confidences[i];
+            if (random.nextInt(10) == 0) {
+                probableConfidences[row + other] = top;
+                probableConfidences[row + activity] = 100 - top;
+            } else {
+                probableConfidences[row + activity] = top;
+                probableConfidences[row + other] = 100 - top;
+            }
+        }
+    }
+}
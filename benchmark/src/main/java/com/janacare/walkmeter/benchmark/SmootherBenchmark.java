@@ -0,0 +1,72 @@
+package com.janacare.walkmeter.benchmark;
+
+import com.janacare.walkmeter.ActivityPipeline;
+import com.janacare.walkmeter.ActivitySmoother;
+import com.janacare.walkmeter.ActivityTypes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The fixed-lag HMM smoother in front of the counting pipeline. Results are per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmootherBenchmark {
+
+    private static final int BATCH_SIZE = 1 << 20;
+
+    private Samples mSamples;
+
+    @Setup
+    public void createSamples() {
+        mSamples = new Samples(BATCH_SIZE, 42);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int smooth() {
+        ActivitySmoother smoother = new ActivitySmoother();
+        int decided = 0;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            decided += smoother.process(mSamples.timestamps[i], mSamples.probableConfidences,
+                    i * ActivityTypes.COUNT);
+        }
+        return decided;
+    }
+
+    /**
+     * The smoother feeding the pipeline, as countOnFootTime runs them
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int smoothAndCount() {
+        ActivitySmoother smoother = new ActivitySmoother();
+        ActivityPipeline pipeline = new ActivityPipeline();
+        int closed = 0;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            int decided = smoother.process(mSamples.timestamps[i],
+                    mSamples.probableConfidences, i * ActivityTypes.COUNT);
+            if (decided > 0) {
+                closed += pipeline.ingest(smoother.getOutputTimestamps(),
+                        smoother.getOutputTypes(), smoother.getOutputConfidences(), decided);
+            }
+        }
+        return closed;
+    }
+}
@@ -0,0 +1,218 @@
+package com.janacare.walkmeter;
+
+import java.util.TimeZone;
+
+/**
+ * Counts the minutes spent on foot from a stream of activity detections.
+ * <p>
+ * Detections are grouped into one minute buckets. The most confident detection in a bucket
+ * decides the activity for that minute, and every on-foot minute is added to today's total.
+ * If no detection arrives for two minutes the bucket is restarted without being counted.
+ * The totals roll over at local midnight, found through a DayBoundary.
+ * <p>
+ * This class has no Android dependencies, so it can be driven from a plain JVM.
+ */
+public class ActivityPipeline {
+
+    // Length of one counting bucket
+    public static final long BUCKET_MILLIS = 60000;
+
+    // A bucket that sees no detection for this long is discarded
+    public static final long BUCKET_TIMEOUT_MILLIS = 120000;
+
+    // The counting state, saved by the caller when it becomes dirty
+    private final BucketState mState;
+
+    // Finds the local day of a bucket
+    private final DayBoundary mDays;
+
+    // Told about every counted bucket
+    private BucketListener[] mListeners = new BucketListener[0];
+
+    /**
+     * Create a pipeline that has not seen any detection yet
+     */
+    public ActivityPipeline() {
+        this(new BucketState());
+    }
+
+    /**
+     * Create a pipeline that continues from a previously saved state
+     *
+     * @param state The state to continue from
+     */
+    public ActivityPipeline(BucketState state) {
+        this(state, new DayBoundary());
+    }
+
+    /**
+     * Create a pipeline that continues from a previously saved state
+     *
+     * @param state The state to continue from
+     * @param days Decides when one day ends and the next begins
+     */
+    public ActivityPipeline(BucketState state, DayBoundary days) {
+        mState = state;
+        mDays = days;
+    }
+
+    /**
+     * Count days in another time zone from now on
+     */
+    public void setTimeZone(TimeZone timeZone) {
+        mDays.setTimeZone(timeZone);
+    }
+
+    /**
+     * Register a listener for the buckets counted from now on
+     */
+    public void addBucketListener(BucketListener listener) {
+        BucketListener[] listeners = new BucketListener[mListeners.length + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+        listeners[mListeners.length] = listener;
+        mListeners = listeners;
+    }
+
+    /**
+     * Feed one detection into the pipeline.
+     *
+     * @param timestampMillis Wall clock time of the detection
+     * @param activityType The most probable activity (see ActivityTypes)
+     * @param confidence The confidence of the most probable activity, 0 to 100
+     * @return true if a bucket was closed and the totals may have changed
+     */
+    public boolean process(long timestampMillis, int activityType, int confidence) {
+        BucketState state = mState;
+
+        // The first detection ever opens the first bucket and the first day. No bucket is
+        // closed, but the state is dirty and should be saved.
+        if (!state.started) {
+            state.started = true;
+            state.bucketStart = timestampMillis;
+            state.bucketActivity = activityType;
+            state.bucketConfidence = confidence;
+            state.startOfDay = mDays.getStartOfDay(timestampMillis);
+            state.highestDate = timestampMillis;
+            state.dirty = true;
+            return false;
+        }
+
+        long bucketEnd = state.bucketStart + BUCKET_MILLIS;
+        long bucketCheck = state.bucketStart + BUCKET_TIMEOUT_MILLIS;
+
+        if (timestampMillis >= bucketCheck) {
+
+            // Too long since the last detection, start over without counting
+            openBucket(timestampMillis, activityType, confidence);
+            return false;
+
+        } else if (timestampMillis >= bucketEnd) {
+
+            // The bucket is over, count it and open the next one
+            closeBucket();
+            openBucket(timestampMillis, activityType, confidence);
+            return true;
+
+        } else if (timestampMillis >= state.bucketStart) {
+
+            // Keep the most confident detection in the bucket
+            if (confidence > state.bucketConfidence) {
+                state.bucketActivity = activityType;
+                state.bucketConfidence = confidence;
+                state.dirty = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Feed a batch of detections into the pipeline, for example a burst of delayed results
+     * or a recomputation from a saved log. Samples must be in time order.
+     *
+     * @param timestampMillis Wall clock times of the detections
+     * @param activityType The most probable activity of each detection
+     * @param confidence The confidence of each detection, 0 to 100
+     * @param n The number of samples to read from the arrays
+     * @return The number of samples that closed a bucket
+     */
+    public int ingest(long[] timestampMillis, byte[] activityType, byte[] confidence, int n) {
+        if (n < 0 || n > timestampMillis.length || n > activityType.length
+                || n > confidence.length) {
+            throw new IllegalArgumentException("Batch size " + n + " exceeds the sample arrays");
+        }
+
+        int closed = 0;
+        for (int i = 0; i < n; i++) {
+            if (process(timestampMillis[i], activityType[i], confidence[i])) {
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    private void openBucket(long timestampMillis, int activityType, int confidence) {
+        mState.bucketStart = timestampMillis;
+        mState.bucketActivity = activityType;
+        mState.bucketConfidence = confidence;
+        mState.dirty = true;
+    }
+
+    /**
+     * Count the open bucket. The bucket belongs to the day and minute in which it started,
+     * so a bucket that runs past midnight is counted for the day it began.
+     */
+    private void closeBucket() {
+        BucketState state = mState;
+        long bucketStart = state.bucketStart;
+
+        // A single comparison while the day hasn't changed
+        if (!mDays.isSameDay(bucketStart, state.startOfDay)) {
+            rollOver(bucketStart);
+        }
+        if (state.bucketActivity == ActivityTypes.ON_FOOT) {
+            state.minutesToday++;
+        }
+
+        if (state.minutesToday >= state.minutesHighest) {
+            state.minutesHighest = state.minutesToday;
+            state.highestDate = bucketStart;
+        }
+
+        BucketListener[] listeners = mListeners;
+        if (listeners.length > 0) {
+            int epochDay = mDays.getEpochDay(bucketStart);
+            int minuteOfDay = mDays.getMinuteOfDay(bucketStart);
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onBucketClosed(bucketStart, epochDay, minuteOfDay,
+                        state.bucketActivity, state.bucketConfidence);
+            }
+        }
+    }
+
+    /**
+     * Start a new day. Today's total becomes yesterday's only if the days are adjacent.
+     */
+    private void rollOver(long timestampMillis) {
+        BucketState state = mState;
+        int days = mDays.daysBetween(state.startOfDay, timestampMillis);
+        state.minutesYesterday = days == 1 ? state.minutesToday : 0;
+        state.minutesToday = 0;
+        state.startOfDay = mDays.getStartOfDay(timestampMillis);
+    }
+
+    public BucketState getState() {
+        return mState;
+    }
+
+    public int getMinutesToday() {
+        return mState.minutesToday;
+    }
+
+    public int getMinutesYesterday() {
+        return mState.minutesYesterday;
+    }
+
+    public int getMinutesHighest() {
+        return mState.minutesHighest;
+    }
+}
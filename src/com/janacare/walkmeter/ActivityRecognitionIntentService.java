@@ -27,19 +27,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
-import android.os.Environment;
+import android.os.Build;
 import android.provider.Settings;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
-
-import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
 
 /**
  * Service that receives ActivityRecognition updates. It receives updates
@@ -50,19 +46,43 @@ public class ActivityRecognitionIntentService extends IntentService {
 	static int min_on_foot_today;
 	static int min_on_foot_yesterday;
 	static int highest_steps;
-	String Activity;
-	Calendar cal;
-	// Formats the timestamp in the log
-	private static final String DATE_FORMAT_PATTERN = "yyyy-MM-dd HH:mm:ss.SSSZ";
+	// Store the app's shared preferences repository
+	SharedPreferences mPrefs;
 
-	// Delimits the timestamp from the log info
-	private static final String LOG_DELIMITER = ";;";
+	// The counting pipeline lives as long as the process, so its state is not
+	// read back from storage on every detection
+	private static ActivityPipeline sPipeline;
+	private static final Object sPipelineLock = new Object();
 
-	// A date formatter
-	private SimpleDateFormat mDateFormat;
+	// Smooths the detections before they are counted, and the confidence vector it reads,
+	// both used under sPipelineLock
+	private static final ActivitySmoother sSmoother = new ActivitySmoother();
+	private static final int[] sConfidences = new int[ActivityTypes.COUNT];
 
-	// Store the app's shared preferences repository
-	SharedPreferences mPrefs;
+	// Lets only real changes of the smoothed activity through to the preferences, used
+	// under sPipelineLock
+	private static final TransitionFilter sTransitionFilter = new TransitionFilter(
+			ActivityUtils.TRANSITION_MIN_DWELL_MILLIS, ActivityUtils.TRANSITION_CONFIDENCE_MARGIN);
+
+	// Fills the detections missing from the stream before it is counted, used under
+	// sPipelineLock
+	private static final GapFiller sGapFiller = new GapFiller(ActivityUtils.GAP_FILL_POLICY,
+			ActivityUtils.GAP_FILL_MAX_MILLIS);
+
+	// Time of the last detection given to the smoother, used under sPipelineLock
+	private static long sLastDetectionMillis;
+
+	// Time of the last decided detection given to the statistics and the transition filter,
+	// used under sPipelineLock. A backfill replays detections up to this time only into the
+	// pipeline, since the statistics already had them before the process was killed.
+	private static long sLastDecidedMillis = -1;
+
+	// Number of logged records read at a time when backfilling
+	private static final int BACKFILL_BATCH_SIZE = 256;
+
+	// Saves the counting state when a bucket closes. It keeps its journal open, so it lives
+	// as long as the process rather than one service instance, used under sPipelineLock.
+	private static CounterStore sCounterStore;
 
 	public ActivityRecognitionIntentService() {
 		// Set the label for the service's background thread
@@ -80,62 +100,85 @@ public class ActivityRecognitionIntentService extends IntentService {
 		mPrefs = getApplicationContext().getSharedPreferences(
 				ActivityUtils.SHARED_PREFERENCES, Context.MODE_PRIVATE);
 
-		// Get a date formatter, and catch errors in the returned timestamp
-		try {
-			mDateFormat = (SimpleDateFormat) DateFormat.getDateTimeInstance();
-		} catch (Exception e) {
-			Log.e(ActivityUtils.APPTAG, getString(R.string.date_format_error));
-		}
-
-		// Format the timestamp according to the pattern, then localize the pattern
-		mDateFormat.applyPattern(DATE_FORMAT_PATTERN);
-		mDateFormat.applyLocalizedPattern(mDateFormat.toLocalizedPattern());
-
 		// If the intent contains an update
 		if (ActivityRecognitionResult.hasResult(intent)) {
 
 			// Get the update
 			ActivityRecognitionResult result = ActivityRecognitionResult.extractResult(intent);
 
-			// Log the update
-			logActivityRecognitionResult(result);
-
-			countOnFootTime(result);
+			// The probable activities of one update share a timestamp
+			long timestampMillis = System.currentTimeMillis();
 
-			// Get the most probable activity from the list of activities in the update
-			DetectedActivity mostProbableActivity = result.getMostProbableActivity();
+			// Count the update before it is logged, so that a pipeline restored from storage
+			// only backfills the detections logged before this one
+			countOnFootTime(result, timestampMillis);
 
-			// Get the confidence percentage for the most probable activity
-			int confidence = mostProbableActivity.getConfidence();
+			// Log the update
+			logActivityRecognitionResult(result, timestampMillis);
+		}
+	}
 
-			// Get the type of activity
-			int activityType = mostProbableActivity.getType();
+	/**
+	 * Save a change of the smoothed activity as the previous activity. Only a debounced
+	 * change reaches the preferences.
+	 *
+	 * @param timestampMillis Wall clock time of the decided detection
+	 * @param activityType The decided activity
+	 * @param confidence The confidence of the decided activity, 0 to 100
+	 */
+	private void updatePreviousActivity(long timestampMillis, int activityType, int confidence) {
+		if (!sTransitionFilter.process(timestampMillis, activityType, confidence)) {
+			return;
+		}
 
-			// Check to see if the repository contains a previous activity
-			if (!mPrefs.contains(ActivityUtils.KEY_PREVIOUS_ACTIVITY_TYPE)) {
+		// Get a handle to the repository
+		if (mPrefs == null) {
+			mPrefs = getApplicationContext().getSharedPreferences(
+					ActivityUtils.SHARED_PREFERENCES, Context.MODE_PRIVATE);
+		}
 
-				// This is the first type an activity has been detected. Store the type
-				Editor editor = mPrefs.edit();
-				editor.putInt(ActivityUtils.KEY_PREVIOUS_ACTIVITY_TYPE, activityType);
-				editor.commit();
+		// Check to see if the repository contains a previous activity
+		if (!mPrefs.contains(ActivityUtils.KEY_PREVIOUS_ACTIVITY_TYPE)) {
 
-				// If the repository contains a type
-			} else if (
-					// If the current type is "moving"
-					isMoving(activityType)
+			// This is the first type an activity has been detected. Store the type
+			Editor editor = mPrefs.edit();
+			editor.putInt(ActivityUtils.KEY_PREVIOUS_ACTIVITY_TYPE, activityType);
+			applyPreferences(editor);
 
-					&&
+			// If the repository contains a type
+		} else if (
 
-					// The activity has changed from the previous activity
-					activityChanged(activityType)
+				// The activity has changed from the previous activity
+				activityChanged(activityType)) {
 
-					// The confidence level for the current activity is > 50%
-					&& (confidence >= 50)) {
+			// If the current type is "moving"
+			if (isMoving(activityType)) {
 
 				// Notify the user
 				// Disabling notifications
 				//sendNotification();
 			}
+
+			// Store the new type, so the next change is compared against it
+			Editor editor = mPrefs.edit();
+			editor.putInt(ActivityUtils.KEY_PREVIOUS_ACTIVITY_TYPE, activityType);
+			applyPreferences(editor);
+		}
+	}
+
+	/**
+	 * Write preference changes without waiting for the disk. apply() updates the in-memory
+	 * preferences at once and writes the file in the background, so the detection thread
+	 * doesn't block on a write per transition. The trade-off is that a change applied just
+	 * before the process is killed can be lost; the next transition then compares against
+	 * the activity before it. apply() is only available from Gingerbread on, so older
+	 * platforms still commit.
+	 */
+	private static void applyPreferences(Editor editor) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			editor.apply();
+		} else {
+			editor.commit();
 		}
 	}
 
@@ -224,233 +267,315 @@ public class ActivityRecognitionIntentService extends IntentService {
 	 * Write the activity recognition update to the log file
 
 	 * @param result The result extracted from the incoming Intent
+	 * @param timestampMillis The time of the update
 	 */
-	private void logActivityRecognitionResult(ActivityRecognitionResult result) {
+	private void logActivityRecognitionResult(ActivityRecognitionResult result,
+			long timestampMillis) {
 		// Get all the probably activities from the updated result
 		Log.d("inside onStartUpdates","logging result");
-		for (DetectedActivity detectedActivity : result.getProbableActivities()) {
-
-			// Get the activity type, confidence level, and human-readable name
-			int activityType = detectedActivity.getType();
-			int confidence = detectedActivity.getConfidence();
-			String activityName = getNameFromType(activityType);
-
-			// Make a timestamp
-			String timeStamp = mDateFormat.format(new Date());
+		List<DetectedActivity> activities = result.getProbableActivities();
+
+		// Get the current log file or create a new one, and follow the device into a new
+		// time zone
+		LogFile logFile = LogFile.getInstance(getApplicationContext());
+		logFile.setTimeZone(TimeZone.getDefault());
+		for (int i = 0; i < activities.size(); i++) {
+			DetectedActivity detectedActivity = activities.get(i);
+
+			// Log the activity type and confidence level to every activity sink
+			logFile.logActivity(timestampMillis, detectedActivity.getType(),
+					detectedActivity.getConfidence());
+		}
+	}
 
-			// Get the current log file or create a new one, then log the activity
-			LogFile.getInstance(getApplicationContext()).log(
-					timeStamp +
-					LOG_DELIMITER +
-					getString(R.string.log_message, activityType, activityName, confidence)
-					);
+	public void countOnFootTime(ActivityRecognitionResult result, long timestampMillis)
+	{
+		synchronized (sPipelineLock)
+		{
+			ActivityPipeline pipeline = getPipeline();
+			boolean started = pipeline.getState().started;
+
+			// Smooth the whole confidence vector, then count the detections it has decided
+			int[] confidences = sConfidences;
+			Arrays.fill(confidences, 0);
+			List<DetectedActivity> activities = result.getProbableActivities();
+			for(int i = 0; i < activities.size(); i++)
+			{
+				DetectedActivity detectedActivity = activities.get(i);
+				int type = detectedActivity.getType();
+				if(type >= 0 && type < ActivityTypes.COUNT)
+				{
+					confidences[type] = detectedActivity.getConfidence();
+				}
+			}
+			int closed = countDetection(pipeline, timestampMillis, confidences);
+			if(closed > 0)
+			{
+				updateTotals(pipeline);
+				Log.d("counting on_foot", Integer.toString(min_on_foot_today));
+			}
 
-			LogData(timeStamp + " " + activityName + " " + confidence);
+			// Only a closed bucket changes the totals, so only then, or when the first
+			// detection has opened the first bucket, is the dirty state saved
+			if(closed > 0 || !started)
+			{
+				getCounterStore().flush(pipeline.getState());
+			}
 		}
 	}
 
 	/**
-	 * Map detected activity types to strings
+	 * Smooth one detection, then count the detections the smoother has decided
 	 *
-	 * @param activityType The detected activity type
-	 * @return A user-readable name for the type
+	 * @param confidences The confidence of each activity type in the detection
+	 * @return The number of detections that closed a bucket
 	 */
-	private String getNameFromType(int activityType) {
-		switch(activityType) {
-		case DetectedActivity.IN_VEHICLE:
-			return "in_vehicle";
-		case DetectedActivity.ON_BICYCLE:
-			return "on_bicycle";
-		case DetectedActivity.ON_FOOT:
-			return "on_foot";
-		case DetectedActivity.STILL:
-			return "still";
-		case DetectedActivity.UNKNOWN:
-			return "unknown";
-		case DetectedActivity.TILTING:
-			return "tilting";
+	private int countDetection(ActivityPipeline pipeline, long timestampMillis, int[] confidences)
+	{
+		sLastDetectionMillis = timestampMillis;
+		int decided = sSmoother.process(timestampMillis, confidences, 0);
+		return decided > 0 ? ingestSmoothed(pipeline, decided) : 0;
+	}
 
+	/**
+	 * Hand the detections the smoother has decided to the statistics and the transition
+	 * filter, then count them
+	 *
+	 * @return The number of detections that closed a bucket
+	 */
+	private int ingestSmoothed(ActivityPipeline pipeline, int decided)
+	{
+		long[] timestampMillis = sSmoother.getOutputTimestamps();
+		byte[] activityType = sSmoother.getOutputTypes();
+		byte[] confidence = sSmoother.getOutputConfidences();
+
+		// Sessions and the timeline see the same activities as the totals
+		ActivityStatistics statistics = ActivityStatistics.getInstance(getApplicationContext());
+		for(int i = 0; i < decided; i++)
+		{
+			if(timestampMillis[i] <= sLastDecidedMillis)
+			{
+				continue;
+			}
+			sLastDecidedMillis = timestampMillis[i];
+			statistics.closeIdle(timestampMillis[i]);
+			statistics.onDetection(timestampMillis[i], activityType[i], confidence[i]);
+			updatePreviousActivity(timestampMillis[i], activityType[i], confidence[i]);
 		}
-		return "unknown";
+		return ingestFilled(pipeline, timestampMillis, activityType, confidence, decided);
 	}
 
-	public void LogData(String input)
+	/**
+	 * Fill the gaps before and within a batch of detections, then count them all at once
+	 *
+	 * @return The number of detections that closed a bucket
+	 */
+	private int ingestFilled(ActivityPipeline pipeline, long[] timestampMillis,
+			byte[] activityType, byte[] confidence, int n)
 	{
+		int filled = sGapFiller.fill(timestampMillis, activityType, confidence, n);
+		return pipeline.ingest(sGapFiller.getOutputTimestamps(), sGapFiller.getOutputTypes(),
+				sGapFiller.getOutputConfidences(), filled);
+	}
 
-		Log.d("in LogData","in LogData " + input);
-		try
+	/**
+	 * Count a batch of logged detections, such as the ones the process hadn't counted yet
+	 * when it was killed, and save the totals once at the end. Records with the same
+	 * timestamp are the probable activities of one detection, as they are logged. The batch
+	 * goes through the same smoother and gap filler as single detections, and detections
+	 * that aren't newer than the last one counted are skipped, because the smoother, the
+	 * gap filler and the open bucket can only move forward in time.
+	 */
+	public void ingestBatch(long[] timestampMillis, byte[] activityType, byte[] confidence, int n)
+	{
+		synchronized (sPipelineLock)
 		{
-			File root = new File(Environment.getExternalStorageDirectory().getPath() + "/activityrecognition");
-			File ActivityLog = new File(Environment.getExternalStorageDirectory().getPath() + "/activityrecognition", "ActivityLog.txt");
-			if(root.isDirectory())
+			ActivityPipeline pipeline = getPipeline();
+			boolean started = pipeline.getState().started;
+			int[] confidences = sConfidences;
+			int closed = 0;
+			int i = 0;
+			while(i < n)
 			{
-				Log.d("root exists","root exists");
-				if(ActivityLog.exists())
+				// Gather the probable activities of one detection
+				long time = timestampMillis[i];
+				Arrays.fill(confidences, 0);
+				for(; i < n && timestampMillis[i] == time; i++)
 				{
-
-					FileWriter outFile = new FileWriter(ActivityLog, true);
-					Log.d("writing","writing " + ActivityLog.getAbsolutePath());
-					PrintWriter out = new PrintWriter(outFile);
-					out.println(input);
-					out.flush();
-					out.close();
+					int type = activityType[i];
+					if(type >= 0 && type < ActivityTypes.COUNT)
+					{
+						confidences[type] = confidence[i];
+					}
 				}
-				else
+
+				if(time > sLastDetectionMillis)
 				{
-					Log.d("writing2","writing2");
-					ActivityLog.createNewFile();
-					FileWriter outFile = new FileWriter(ActivityLog, true);
-					PrintWriter out = new PrintWriter(outFile);
-					out.println(input);
-					out.flush();
-					out.close();
+					closed += countDetection(pipeline, time, confidences);
 				}
 			}
-			else
-			{
-				root.mkdir();
-				ActivityLog.createNewFile();
-
-				FileWriter outFile = new FileWriter(ActivityLog, true);
 
-				PrintWriter out = new PrintWriter(outFile);
-				out.println(input);
-				out.flush();
-				Log.d("writing3","writing3");
-				out.close();
+			if(closed > 0)
+			{
+				updateTotals(pipeline);
+			}
+			if(closed > 0 || !started)
+			{
+				getCounterStore().flush(pipeline.getState());
 			}
-		}
-		catch(Exception e)
-		{
-			e.printStackTrace();
 		}
 	}
 
-	public void countOnFootTime(ActivityRecognitionResult result)
+	@Override
+	public void onLowMemory()
 	{
-		DetectedActivity mostPActivity = result.getMostProbableActivity();
-		int confidence = mostPActivity.getConfidence();
-		int activityType = mostPActivity.getType();
-
-
+		flushPipeline();
+		LogFile.getInstance(getApplicationContext()).sync();
+		super.onLowMemory();
+	}
 
-		cal = Calendar.getInstance();
+	@Override
+	public void onTrimMemory(int level)
+	{
+		flushPipeline();
+		LogFile.getInstance(getApplicationContext()).sync();
+		super.onTrimMemory(level);
+	}
 
-		Log.d("start of day", "" + cal.getTime());
+	/**
+	 * Get the in-memory counting pipeline, restoring it from storage the first time
+	 * it is used in this process
+	 */
+	private ActivityPipeline getPipeline()
+	{
+		if(sPipeline == null)
+		{
+			sPipeline = new ActivityPipeline(getCounterStore().load());
+			ActivityStatistics statistics = ActivityStatistics.getInstance(getApplicationContext());
+			statistics.attach(sPipeline);
+			sLastDecidedMillis = statistics.getLastDetectionMillis();
+			backfill(sPipeline);
+		}
 
-		Activity = getNameFromType(activityType);
+		// Follow the device into a new time zone, so that days end at local midnight
+		sPipeline.setTimeZone(TimeZone.getDefault());
+		return sPipeline;
+	}
 
-		Log.d("intent activity type", Activity);
-		if(!mPrefs.contains("bucket_start_time"))
+	/**
+	 * Count the detections that were logged but not counted when the process was last
+	 * killed. Those are the detections after the start of the bucket in the saved state,
+	 * which were still waiting in the smoother or in a bucket that wasn't saved yet.
+	 */
+	private void backfill(ActivityPipeline pipeline)
+	{
+		BucketState state = pipeline.getState();
+		if(!state.started)
 		{
-			Editor editor = mPrefs.edit();
-			editor.putLong("bucket_start_time",cal.getTimeInMillis());
-			editor.putLong("Start_of_day", cal.getTimeInMillis());
-			editor.putInt("minutes_today",0);
-			editor.putInt("minutes_yesterday", 0);
-			editor.putInt("minutes_highest", 0);
-			editor.putInt("activityType", activityType);
-			editor.putInt("confidence", confidence);
-			editor.putInt(Constants.KEY_STEPS_TODAY, 0);
-			editor.putInt("steps_yesterday", 0);
-			editor.putString("highest_date",cal.getTime().toString() );
-			editor.commit();
+			return;
 		}
-		else  	
-		{
-			Long currentTime = cal.getTimeInMillis();
-			Long BucketStart = mPrefs.getLong("bucket_start_time", currentTime);
-			Long BucketEnd = BucketStart + 60000;
-			Long BucketCheck = BucketStart + 120000;
-
-			Log.d("bucketStart", Long.toString(BucketStart));
-			Log.d("currentTime", Long.toString(currentTime));
-			Log.d("bucketEnd", Long.toString(BucketEnd));
-			Log.d("BucketCheck", Long.toString(BucketCheck));
 
-			if(currentTime >= BucketCheck)
-			{
-				BucketStart = currentTime;
-				Editor editor = mPrefs.edit();
-				editor.putLong("bucket_start_time",currentTime);
-				editor.putInt("activityType", activityType);
-				editor.putInt("confidence", confidence);
-				editor.commit();
-			}
-			else if(currentTime >= BucketEnd)
+		MappedHistoryStore history = LogFile.getInstance(getApplicationContext()).getHistoryStore();
+		MappedHistoryStore.Cursor cursor = history.newCursor();
+		long[] timestampMillis = new long[BACKFILL_BATCH_SIZE];
+		byte[] activityType = new byte[BACKFILL_BATCH_SIZE];
+		byte[] confidence = new byte[BACKFILL_BATCH_SIZE];
+		try
+		{
+			int next = history.indexOf(state.bucketStart + 1);
+			int size = history.size();
+			while(next < size)
 			{
-				Log.d("IntentService","bucket over " + mPrefs.getInt("minutes_highest", 0));
-				Editor editor = mPrefs.edit();
-				
-				int StoredActivity = mPrefs.getInt("activityType", 0);
-				if(StoredActivity == DetectedActivity.ON_FOOT)
+				int n = 0;
+				for(; next < size && n < BACKFILL_BATCH_SIZE; next++, n++)
 				{
-					//Long StartDay = cal2.getTimeInMillis();
-					//if(!(StartDay > mPrefs.getLong("Start_of_day", 0)))
-					Long prevStart = mPrefs.getLong("Start_of_day", 0);
-					Calendar prevStartCal = Calendar.getInstance();
-					prevStartCal.setTimeInMillis(prevStart);
-					if(cal.get(Calendar.DAY_OF_YEAR) == prevStartCal.get(Calendar.DAY_OF_YEAR))
-					{	
-						int prev_steps = mPrefs.getInt(Constants.KEY_STEPS_TODAY, 0);
-						editor.putInt(Constants.KEY_STEPS_TODAY, prev_steps + 1);
-						min_on_foot_today = mPrefs.getInt(Constants.KEY_STEPS_TODAY, 0);
-						min_on_foot_yesterday = mPrefs.getInt("steps_yesterday", 0);
-						Log.d("counting on_foot",Integer.toString(mPrefs.getInt(Constants.KEY_STEPS_TODAY, 0)));
-					}
+					cursor.moveTo(next);
+					timestampMillis[n] = cursor.getTimestamp();
+					activityType[n] = (byte) cursor.getActivityType();
+					confidence[n] = (byte) cursor.getConfidence();
+				}
 
-					else
+				// A detection cut in two by the end of the batch is read again with the next one
+				if(next < size)
+				{
+					int end = n - 1;
+					while(end > 0 && timestampMillis[end - 1] == timestampMillis[n - 1])
 					{
-						editor.putLong("Start_of_day", cal.getTimeInMillis());
-						editor.putInt("steps_yesterday", mPrefs.getInt(Constants.KEY_STEPS_TODAY,-1 ));
-						editor.putInt(Constants.KEY_STEPS_TODAY, 1);
-						min_on_foot_today = mPrefs.getInt(Constants.KEY_STEPS_TODAY, 0);
-						min_on_foot_yesterday = mPrefs.getInt("steps_yesterday", 0);
+						end--;
 					}
+					if(end > 0)
+					{
+						next -= n - end;
+						n = end;
+					}
+				}
+				ingestBatch(timestampMillis, activityType, confidence, n);
+			}
+		}
+		catch(IOException e)
+		{
+			Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+		}
+	}
 
-					
-
-
-				}	
+	/**
+	 * Get the filter that debounces activity changes, for its counts of the changes seen,
+	 * saved and suppressed
+	 */
+	public static TransitionFilter getTransitionFilter()
+	{
+		return sTransitionFilter;
+	}
 
-				Log.d("IntentService","" +mPrefs.getInt(Constants.KEY_STEPS_TODAY, -1));
-				Log.d("IntentService","" + mPrefs.getInt("minutes_highest", -1));
-				
-				if(mPrefs.getInt("minutes_highest",0) == 0)
-				{
-					editor.putInt("minutes_highest", min_on_foot_today);
-					editor.putString("highest_date",cal.getTime().toString() );
-					editor.commit();
-				}
-				if(mPrefs.getInt(Constants.KEY_STEPS_TODAY, 0) >= mPrefs.getInt("minutes_highest",0) )
-				{
-					
-					Log.d("IntentService","steps today > minutes highest");
-					editor.putInt("minutes_highest",mPrefs.getInt(Constants.KEY_STEPS_TODAY,-1));
-					editor.putString("highest_date",cal.getTime().toString() );
-					editor.commit();
-				}
+	private CounterStore getCounterStore()
+	{
+		if(sCounterStore == null)
+		{
+			sCounterStore = new CounterStore(getApplicationContext());
+		}
+		return sCounterStore;
+	}
 
-				BucketStart = BucketEnd;
-				editor.putLong("bucket_start_time",currentTime);
-				editor.putInt("activityType", activityType);
-				editor.putInt("confidence", confidence);
-				editor.commit();
-			}
-			else if(BucketEnd >= currentTime && currentTime >= BucketStart)
+	/**
+	 * Save any unsaved counting state before the process may be killed
+	 */
+	private void flushPipeline()
+	{
+		synchronized (sPipelineLock)
+		{
+			if(sPipeline != null)
 			{
-				int StoredActivityType = mPrefs.getInt("activityType", 0);
-				int StoredConfidence = mPrefs.getInt("confidence", 0);
-
-				if(confidence > StoredConfidence)
+				// Count the detections still waiting for the smoother
+				int decided = sSmoother.flush();
+				if(decided > 0 && ingestSmoothed(sPipeline, decided) > 0)
 				{
-					Editor editor = mPrefs.edit();
-					editor.putInt("activityType", activityType);
-					editor.putInt("confidence", confidence);
-					editor.commit();
+					updateTotals(sPipeline);
 				}
+				getCounterStore().flush(sPipeline.getState());
+
+				// No detection is waiting in the smoother now, so a session that has gone
+				// quiet can end
+				ActivityStatistics statistics = ActivityStatistics.getInstance(getApplicationContext());
+				statistics.closeIdle(System.currentTimeMillis());
+				statistics.flush();
+				Log.d(ActivityUtils.APPTAG, "activity changes "
+						+ sTransitionFilter.getRawChangeCount()
+						+ ", saved " + sTransitionFilter.getTransitionCount()
+						+ ", suppressed " + sTransitionFilter.getSuppressedCount());
+				Log.d(ActivityUtils.APPTAG, "gaps " + sGapFiller.getGapCount()
+						+ ", filled " + sGapFiller.getFilledGapCount()
+						+ " with " + sGapFiller.getFilledDetectionCount() + " detections"
+						+ ", longest " + sGapFiller.getLongestGapMillis() + " ms"
+						+ ", lost " + sGapFiller.getUnfilledMillis() + " ms");
 			}
 		}
+	}
 
+	private void updateTotals(ActivityPipeline pipeline)
+	{
+		min_on_foot_today = pipeline.getMinutesToday();
+		min_on_foot_yesterday = pipeline.getMinutesYesterday();
+		highest_steps = ActivityStatistics.getInstance(getApplicationContext())
+				.getHighestMinutesOnFoot();
 	}
 }
@@ -0,0 +1,84 @@
+package com.janacare.walkmeter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * The single write path for detected activities. Each record is formatted once, into a
+ * reused LogLineEncoder, and then handed to every registered ActivitySink. A sink that
+ * fails doesn't stop the others.
+ */
+public class ActivityRecordWriter {
+
+    // Registered sinks, and how many of them need the formatted line
+    private final List<ActivitySink> mSinks = new ArrayList<ActivitySink>();
+    private int mLineSinks;
+
+    // Formats the log line, reused for every record
+    private final LogLineEncoder mEncoder = new LogLineEncoder();
+
+    /**
+     * Register a sink. It receives every record written from now on.
+     */
+    public synchronized void addSink(ActivitySink sink) {
+        mSinks.add(sink);
+        if (sink.needsLine()) {
+            mLineSinks++;
+        }
+    }
+
+    /**
+     * Format the log lines in another time zone from the next record on
+     */
+    public synchronized void setTimeZone(TimeZone timeZone) {
+        mEncoder.setTimeZone(timeZone);
+    }
+
+    /**
+     * Write one detected activity to every sink
+     */
+    public synchronized void write(long timestampMillis, int activityType, int confidence) {
+        LogLineEncoder line = null;
+        if (mLineSinks > 0) {
+            line = mEncoder.encode(timestampMillis, activityType, confidence);
+        }
+
+        for (int i = 0; i < mSinks.size(); i++) {
+            try {
+                mSinks.get(i).write(timestampMillis, activityType, confidence, line);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Flush every sink
+     */
+    public synchronized void flush() {
+        for (int i = 0; i < mSinks.size(); i++) {
+            try {
+                mSinks.get(i).flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Close and unregister every sink
+     */
+    public synchronized void close() {
+        for (int i = 0; i < mSinks.size(); i++) {
+            try {
+                mSinks.get(i).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mSinks.clear();
+        mLineSinks = 0;
+    }
+}
@@ -0,0 +1,254 @@
+package com.janacare.walkmeter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A block of detected activities stored column by column. HistoryPager reads the
+ * history into a segment a page at a time, and BinaryActivityLog archives the history
+ * as a file of segments.
+ * <p>
+ * On disk a segment is a header (magic, record count, base timestamp), then the timestamps
+ * as zig-zag varint deltas from the previous record, then one activity type byte and one
+ * confidence byte per record, then a CRC32 of everything before it. Detections 20 seconds
+ * apart take 3 bytes for the timestamp, and the probable activities of one detection share
+ * a timestamp and take 1 byte, so a record costs 3 to 5 bytes.
+ */
+public class ActivitySegment {
+
+    // Most records a segment can hold
+    public static final int MAX_CAPACITY = 0xFFFF;
+
+    // Marks the start of every segment ("WKS1")
+    private static final int SEGMENT_MAGIC = 0x574B5331;
+
+    // Formats the timestamp in the text view
+    private static final String DATE_FORMAT_PATTERN = "yyyy-MM-dd HH:mm:ss.SSSZ";
+
+    // Delimits the timestamp from the log info in the text view
+    private static final String LOG_DELIMITER = ";;";
+
+    // The columns
+    private final long[] mTimestamps;
+    private final byte[] mActivityTypes;
+    private final byte[] mConfidences;
+
+    // Number of records in the segment
+    private int mSize;
+
+    /**
+     * Create an empty segment
+     *
+     * @param capacity The most records the segment can hold
+     */
+    public ActivitySegment(int capacity) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Invalid segment capacity " + capacity);
+        }
+        mTimestamps = new long[capacity];
+        mActivityTypes = new byte[capacity];
+        mConfidences = new byte[capacity];
+    }
+
+    /**
+     * Add a record to the segment
+     *
+     * @return false if the segment is full and the record was not added
+     */
+    public boolean add(long timestampMillis, int activityType, int confidence) {
+        if (mSize == mTimestamps.length) {
+            return false;
+        }
+        mTimestamps[mSize] = timestampMillis;
+        mActivityTypes[mSize] = (byte) activityType;
+        mConfidences[mSize] = (byte) confidence;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Remove every record so the segment can be reused
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mTimestamps.length;
+    }
+
+    public boolean isFull() {
+        return mSize == mTimestamps.length;
+    }
+
+    public long getTimestamp(int index) {
+        return mTimestamps[index];
+    }
+
+    public int getActivityType(int index) {
+        return mActivityTypes[index];
+    }
+
+    public int getConfidence(int index) {
+        return mConfidences[index];
+    }
+
+    /**
+     * Write the segment in its binary form
+     *
+     * @param out The stream to write to. It is not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32());
+        DataOutputStream data = new DataOutputStream(checked);
+
+        int size = mSize;
+        long base = size > 0 ? mTimestamps[0] : 0;
+        data.writeInt(SEGMENT_MAGIC);
+        data.writeShort(size);
+        data.writeLong(base);
+
+        long previous = base;
+        for (int i = 0; i < size; i++) {
+            writeVarLong(data, zigZag(mTimestamps[i] - previous));
+            previous = mTimestamps[i];
+        }
+        data.write(mActivityTypes, 0, size);
+        data.write(mConfidences, 0, size);
+
+        data.writeInt((int) checked.getChecksum().getValue());
+        data.flush();
+    }
+
+    /**
+     * Read the next segment in its binary form
+     *
+     * @param in The stream to read from
+     * @return The segment, or null at the end of the stream
+     * @throws IOException if the segment is truncated or fails its checksum
+     */
+    public static ActivitySegment readFrom(InputStream in) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        DataInputStream data = new DataInputStream(checked);
+
+        int magic;
+        try {
+            magic = data.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (magic != SEGMENT_MAGIC) {
+            throw new IOException("Bad activity segment header");
+        }
+
+        int size = data.readUnsignedShort();
+        ActivitySegment segment = new ActivitySegment(Math.max(size, 1));
+        long previous = data.readLong();
+        for (int i = 0; i < size; i++) {
+            previous += unZigZag(readVarLong(data));
+            segment.mTimestamps[i] = previous;
+        }
+        data.readFully(segment.mActivityTypes, 0, size);
+        data.readFully(segment.mConfidences, 0, size);
+        segment.mSize = size;
+
+        int expected = (int) checked.getChecksum().getValue();
+        if (data.readInt() != expected) {
+            throw new IOException("Activity segment checksum mismatch");
+        }
+        return segment;
+    }
+
+    /**
+     * Get the size of the segment in its binary form
+     */
+    public int getEncodedSize() {
+        int bytes = 4 + 2 + 8 + 4;
+        long previous = mSize > 0 ? mTimestamps[0] : 0;
+        for (int i = 0; i < mSize; i++) {
+            long value = zigZag(mTimestamps[i] - previous);
+            previous = mTimestamps[i];
+            do {
+                bytes++;
+                value >>>= 7;
+            } while (value != 0);
+        }
+        return bytes + 2 * mSize;
+    }
+
+    /**
+     * Format every record as a human-readable log line
+     *
+     * @param lines Receives one line per record
+     */
+    public void appendText(List<String> lines) {
+        SimpleDateFormat format = newDateFormat();
+        for (int i = 0; i < mSize; i++) {
+            lines.add(formatLine(format, mTimestamps[i], mActivityTypes[i], mConfidences[i]));
+        }
+    }
+
+    /**
+     * Create a formatter for the timestamps of formatLine()
+     */
+    public static SimpleDateFormat newDateFormat() {
+        return new SimpleDateFormat(DATE_FORMAT_PATTERN, Locale.US);
+    }
+
+    /**
+     * Format one detection as a human-readable log line
+     *
+     * @param format A formatter from newDateFormat()
+     */
+    public static String formatLine(SimpleDateFormat format, long timestampMillis,
+            int activityType, int confidence) {
+        return format.format(new Date(timestampMillis))
+                + LOG_DELIMITER
+                + "Log: timestamp: " + activityType
+                + " type " + ActivityTypes.getName(activityType)
+                + " confidence " + confidence;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed timestamp in activity segment");
+    }
+}
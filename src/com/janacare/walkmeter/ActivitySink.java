@@ -0,0 +1,41 @@
+package com.janacare.walkmeter;
+
+import java.io.IOException;
+
+/**
+ * A destination for detected activity records. Sinks are registered with an
+ * ActivityRecordWriter, which hands every record to each of them. A sink does its own
+ * buffering and decides when to write to storage, except that flush() must write out
+ * everything it has been given.
+ */
+public interface ActivitySink {
+
+    /**
+     * Check whether the sink uses the formatted text line of a record. The line is only
+     * formatted if at least one sink needs it.
+     */
+    boolean needsLine();
+
+    /**
+     * Take one detected activity
+     *
+     * @param timestampMillis Wall clock time of the detection
+     * @param activityType The detected activity type
+     * @param confidence The confidence of the detection, 0 to 100
+     * @param line The record formatted as a log line, or null if no sink needs it. The
+     *            encoder is reused for the next record, so the line is only valid during
+     *            this call.
+     */
+    void write(long timestampMillis, int activityType, int confidence, LogLineEncoder line)
+            throws IOException;
+
+    /**
+     * Write out everything the sink has buffered
+     */
+    void flush() throws IOException;
+
+    /**
+     * Flush the sink and release its resources
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,265 @@
+package com.janacare.walkmeter;
+
+/**
+ * Smooths the stream of detections with a hidden Markov model, decided a fixed number of
+ * detections late.
+ * <p>
+ * The hidden state is the activity. Each detection gives the confidence of every probable
+ * activity, which is used as the emission score of that state, and the transition matrix
+ * makes staying in an activity more likely than switching. A Viterbi step per detection
+ * costs O(states^2). The detection from the lag before is then decided by tracing the best
+ * path back, so a single noisy reading that the following detections contradict is
+ * replaced by the activity around it. Detections further apart than the gap limit end the
+ * path: the detections still waiting are decided at once, and the model starts over.
+ * <p>
+ * Every array is allocated up front, so processing a detection allocates nothing. The
+ * decided detections are left in output arrays laid out like the arguments of
+ * ActivityPipeline.ingest().
+ */
+public class ActivitySmoother {
+
+    // Default number of detections a decision waits for, a minute at the usual interval
+    public static final int DEFAULT_LAG = 3;
+
+    // Default chance that the activity stays the same from one detection to the next
+    public static final float DEFAULT_STAY_PROBABILITY = 0.9f;
+
+    // Number of hidden states, one per activity type
+    private static final int STATES = ActivityTypes.COUNT;
+
+    // Confidence given to an activity missing from a detection, so it stays possible
+    private static final int CONFIDENCE_FLOOR = 1;
+
+    // Log emission score of each confidence from 0 to 100
+    private static final float[] LOG_EMISSION = new float[101];
+
+    static {
+        for (int confidence = 0; confidence <= 100; confidence++) {
+            LOG_EMISSION[confidence] = (float) Math.log(confidence + CONFIDENCE_FLOOR);
+        }
+    }
+
+    // Number of detections a decision waits for
+    private final int mLag;
+
+    // Detections further apart than this end the path
+    private final long mMaxGapMillis;
+
+    // Log transition scores, from state i to state j at [i * STATES + j]
+    private final float[] mLogTransition = new float[STATES * STATES];
+
+    // Best path score ending in each state, for the last detection and the next
+    private float[] mScores = new float[STATES];
+    private float[] mNextScores = new float[STATES];
+
+    // The last lag + 1 detections: time, confidences by state and the best previous state
+    // of each state, in rings indexed by step modulo the ring size
+    private final int mRingSize;
+    private final long[] mTimes;
+    private final byte[] mConfidences;
+    private final byte[] mBackPointers;
+
+    // Detections on the current path, and the time of the last one
+    private long mSteps;
+    private long mLastTime;
+
+    // States traced back along the best path, by ring slot
+    private final byte[] mPath;
+
+    // Decided detections, ready for ActivityPipeline.ingest()
+    private final long[] mOutTimes;
+    private final byte[] mOutTypes;
+    private final byte[] mOutConfidences;
+
+    public ActivitySmoother() {
+        this(DEFAULT_LAG, DEFAULT_STAY_PROBABILITY, ActivityPipeline.BUCKET_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param lag Number of detections a decision waits for
+     * @param stayProbability Chance that the activity stays the same from one detection to
+     *        the next, between 0 and 1
+     * @param maxGapMillis Detections further apart than this end the path
+     */
+    public ActivitySmoother(int lag, float stayProbability, long maxGapMillis) {
+        if (lag < 0 || stayProbability <= 0 || stayProbability >= 1) {
+            throw new IllegalArgumentException("Invalid smoother settings " + lag + ", "
+                    + stayProbability);
+        }
+        mLag = lag;
+        mMaxGapMillis = maxGapMillis;
+
+        float stay = (float) Math.log(stayProbability);
+        float change = (float) Math.log((1 - stayProbability) / (STATES - 1));
+        for (int i = 0; i < STATES; i++) {
+            for (int j = 0; j < STATES; j++) {
+                mLogTransition[i * STATES + j] = i == j ? stay : change;
+            }
+        }
+
+        mRingSize = lag + 1;
+        mTimes = new long[mRingSize];
+        mConfidences = new byte[mRingSize * STATES];
+        mBackPointers = new byte[mRingSize * STATES];
+        mPath = new byte[mRingSize];
+        mOutTimes = new long[mRingSize];
+        mOutTypes = new byte[mRingSize];
+        mOutConfidences = new byte[mRingSize];
+    }
+
+    /**
+     * Get the most detections one call can decide, the size of the output arrays
+     */
+    public int getMaxOutput() {
+        return mRingSize;
+    }
+
+    /**
+     * Feed one detection. Detections must be in time order.
+     *
+     * @param timestampMillis Wall clock time of the detection
+     * @param confidences The confidence of each activity type, 0 to 100, at
+     *        confidences[offset + type]. Activities that weren't detected are 0.
+     * @param offset Where the confidences of this detection start in the array
+     * @return The number of detections decided, left in the output arrays
+     */
+    public int process(long timestampMillis, int[] confidences, int offset) {
+        int decided = 0;
+        if (mSteps > 0 && timestampMillis - mLastTime > mMaxGapMillis) {
+            decided = drain(0);
+        }
+
+        int slot = (int) (mSteps % mRingSize);
+        int row = slot * STATES;
+        for (int state = 0; state < STATES; state++) {
+            int confidence = confidences[offset + state];
+            mConfidences[row + state] = (byte) (confidence < 0 ? 0
+                    : confidence > 100 ? 100 : confidence);
+        }
+
+        if (mSteps == 0) {
+            for (int state = 0; state < STATES; state++) {
+                mScores[state] = LOG_EMISSION[mConfidences[row + state]];
+            }
+        } else {
+            float[] scores = mScores;
+            float[] next = mNextScores;
+            float[] transition = mLogTransition;
+            float top = Float.NEGATIVE_INFINITY;
+            for (int j = 0; j < STATES; j++) {
+                int bestFrom = 0;
+                float best = scores[0] + transition[j];
+                for (int i = 1; i < STATES; i++) {
+                    float score = scores[i] + transition[i * STATES + j];
+                    if (score > best) {
+                        best = score;
+                        bestFrom = i;
+                    }
+                }
+                best += LOG_EMISSION[mConfidences[row + j]];
+                next[j] = best;
+                mBackPointers[row + j] = (byte) bestFrom;
+                if (best > top) {
+                    top = best;
+                }
+            }
+
+            // Keep the scores near 0 so they never lose precision
+            for (int j = 0; j < STATES; j++) {
+                next[j] -= top;
+            }
+            mNextScores = scores;
+            mScores = next;
+        }
+
+        mTimes[slot] = timestampMillis;
+        mLastTime = timestampMillis;
+        mSteps++;
+
+        if (mSteps > mLag) {
+            decided = decide(decided);
+        }
+        return decided;
+    }
+
+    /**
+     * Decide every detection still waiting, for example before the service stops, and start
+     * a new path with the next detection
+     *
+     * @return The number of detections decided, left in the output arrays
+     */
+    public int flush() {
+        return mSteps > 0 ? drain(0) : 0;
+    }
+
+    /**
+     * Get the times of the decided detections
+     */
+    public long[] getOutputTimestamps() {
+        return mOutTimes;
+    }
+
+    /**
+     * Get the smoothed activity of the decided detections
+     */
+    public byte[] getOutputTypes() {
+        return mOutTypes;
+    }
+
+    /**
+     * Get the detected confidence of the smoothed activity of the decided detections
+     */
+    public byte[] getOutputConfidences() {
+        return mOutConfidences;
+    }
+
+    /**
+     * Decide the detection from the lag before the last one
+     */
+    private int decide(int decided) {
+        int state = getBestState();
+        long step = mSteps - 1;
+        for (int i = 0; i < mLag; i++, step--) {
+            int slot = (int) (step % mRingSize);
+            state = mBackPointers[slot * STATES + state];
+        }
+        return output(decided, (int) (step % mRingSize), state);
+    }
+
+    /**
+     * Decide every detection still waiting and end the path
+     */
+    private int drain(int decided) {
+        long first = Math.max(0, mSteps - mLag);
+        int state = getBestState();
+        for (long step = mSteps - 1; step >= first; step--) {
+            int slot = (int) (step % mRingSize);
+            mPath[slot] = (byte) state;
+            state = mBackPointers[slot * STATES + state];
+        }
+        for (long step = first; step < mSteps; step++) {
+            int slot = (int) (step % mRingSize);
+            decided = output(decided, slot, mPath[slot]);
+        }
+        mSteps = 0;
+        return decided;
+    }
+
+    private int output(int decided, int slot, int state) {
+        mOutTimes[decided] = mTimes[slot];
+        mOutTypes[decided] = (byte) state;
+        mOutConfidences[decided] = mConfidences[slot * STATES + state];
+        return decided + 1;
+    }
+
+    private int getBestState() {
+        float[] scores = mScores;
+        int best = 0;
+        for (int state = 1; state < STATES; state++) {
+            if (scores[state] > scores[best]) {
+                best = state;
+            }
+        }
+        return best;
+    }
+}
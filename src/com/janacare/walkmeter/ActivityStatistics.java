@@ -0,0 +1,418 @@
+package com.janacare.walkmeter;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The statistics kept from the buckets counted by the ActivityPipeline. They are stored in
+ * their own directory, apart from getFilesDir(), which is emptied when the log files are
+ * removed.
+ */
+public class ActivityStatistics {
+
+    // Name of the directory that holds the statistics files
+    private static final String STATISTICS_DIR_NAME = "statistics";
+
+    // Names of the statistics files
+    private static final String ROLLUP_FILE_NAME = "rollups.dat";
+    private static final String DAY_BITMAP_FILE_NAME = "daybitmaps.dat";
+    private static final String ON_FOOT_SUMS_FILE_NAME = "onfootsums.dat";
+    private static final String DAILY_TOTALS_FILE_NAME = "dailytotals.dat";
+    private static final String BEST_DAYS_FILE_NAME = "bestdays.dat";
+    private static final String BEST_WEEKS_FILE_NAME = "bestweeks.dat";
+    private static final String QUANTILES_FILE_NAME = "quantiles.dat";
+    private static final String SESSIONS_FILE_NAME = "sessions.dat";
+    private static final String TIMELINE_FILE_NAME = "timeline.dat";
+
+    // Number of days and weeks on each leaderboard
+    public static final int LEADERBOARD_SIZE = 10;
+
+    // Minute, hour, day and week totals
+    private final RollupStore mRollups;
+
+    // The minutes of every day, one bitmap per day and activity
+    private final DayBitmapStore mDayBitmaps;
+
+    // The minutes of every activity on every day
+    private final DailyTotalsStore mDailyTotals;
+
+    // Prefix sums of the minutes on foot, for totals over any range of minutes
+    private final MinuteFenwickIndex mOnFootSums;
+
+    // Compressed index of every minute, filled from the day bitmaps when first used
+    private final MinuteIndex mMinuteIndex = new MinuteIndex();
+    private boolean mMinuteIndexLoaded;
+
+    // Sums and averages of the minutes on foot over the last 7, 30 and 365 days, filled
+    // from the daily history when first used
+    private final RollingTotals mRollingTotals = new RollingTotals();
+    private boolean mRollingTotalsLoaded;
+
+    // Quantile sketches of day totals and session lengths, and the file they are saved in
+    private final QuantileStatistics mQuantiles;
+    private final File mQuantilesFile;
+
+    // Finds sessions, such as walks, in the detections and keeps them sorted by start
+    private final SessionSegmenter mSegmenter = new SessionSegmenter();
+    private final SessionStore mSessions;
+
+    // Every detection as runs of one activity
+    private final ActivityTimeline mTimeline;
+
+    // The best days and ISO weeks on foot
+    private final LeaderboardStore mBestDays;
+    private final LeaderboardStore mBestWeeks;
+
+    // Moves the current day and week up the leaderboards, after the daily totals have
+    // counted the bucket
+    private final BucketListener mLeaderboardUpdater = new BucketListener() {
+
+        @Override
+        public void onBucketClosed(long bucketStartMillis, int epochDay, int minuteOfDay,
+                int activityType, int confidence) {
+            if (activityType == ActivityTypes.ON_FOOT && epochDay >= 0) {
+                updateLeaderboards(epochDay);
+            }
+        }
+    };
+
+    // Store the single instance
+    private static ActivityStatistics sInstance = null;
+
+    private ActivityStatistics(Context context) {
+        File dir = context.getDir(STATISTICS_DIR_NAME, Context.MODE_PRIVATE);
+
+        RollupStore rollups;
+        try {
+            rollups = new RollupStore(new File(dir, ROLLUP_FILE_NAME));
+        } catch (IOException e) {
+
+            // Keep counting in memory for the life of the process
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+            rollups = new RollupStore();
+        }
+        mRollups = rollups;
+        mDayBitmaps = new DayBitmapStore(new File(dir, DAY_BITMAP_FILE_NAME));
+        mDailyTotals = new DailyTotalsStore(new File(dir, DAILY_TOTALS_FILE_NAME));
+        mOnFootSums = new MinuteFenwickIndex(new File(dir, ON_FOOT_SUMS_FILE_NAME),
+                ActivityTypes.ON_FOOT);
+        mBestDays = new LeaderboardStore(new File(dir, BEST_DAYS_FILE_NAME), LEADERBOARD_SIZE);
+        mBestWeeks = new LeaderboardStore(new File(dir, BEST_WEEKS_FILE_NAME),
+                LEADERBOARD_SIZE);
+
+        mQuantilesFile = new File(dir, QUANTILES_FILE_NAME);
+        mQuantiles = new QuantileStatistics(mQuantilesFile);
+        try {
+            mQuantiles.load(mQuantilesFile);
+        } catch (IOException e) {
+
+            // Start the sketches over
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+        }
+        restoreQuantileDay();
+
+        mSessions = new SessionStore(new File(dir, SESSIONS_FILE_NAME));
+        mSegmenter.addSessionListener(mSessions);
+        mSegmenter.addSessionListener(mQuantiles);
+        mTimeline = new ActivityTimeline(new File(dir, TIMELINE_FILE_NAME));
+    }
+
+    /**
+     * The quantile sketches are saved when a day closes, so buckets counted since then
+     * may be missing from the day being counted. The daily totals have all of them.
+     */
+    private void restoreQuantileDay() {
+        int day = mQuantiles.getCurrentDay();
+        if (day < 0) {
+            return;
+        }
+        try {
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                mQuantiles.setDayMinutes(type, mDailyTotals.getMinutes(day, type));
+            }
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the statistics of the app, opening them the first time
+     *
+     * @param context A Context for the current app
+     */
+    public static synchronized ActivityStatistics getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ActivityStatistics(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Keep the statistics up to date from the buckets a pipeline counts
+     */
+    public void attach(ActivityPipeline pipeline) {
+        importTotals(pipeline.getState());
+        loadRollingTotals();
+        pipeline.addBucketListener(mDailyTotals);
+        pipeline.addBucketListener(mLeaderboardUpdater);
+        pipeline.addBucketListener(mRollingTotals);
+        pipeline.addBucketListener(mRollups);
+        pipeline.addBucketListener(mDayBitmaps);
+        pipeline.addBucketListener(mOnFootSums);
+        pipeline.addBucketListener(mMinuteIndex);
+        pipeline.addBucketListener(mQuantiles);
+    }
+
+    public RollupStore getRollups() {
+        return mRollups;
+    }
+
+    public DayBitmapStore getDayBitmaps() {
+        return mDayBitmaps;
+    }
+
+    public DailyTotalsStore getDailyTotals() {
+        return mDailyTotals;
+    }
+
+    /**
+     * Get the most minutes on foot in one day
+     */
+    public int getHighestMinutesOnFoot() {
+        try {
+            return mDailyTotals.getHighestMinutes(ActivityTypes.ON_FOOT);
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Get the best days on foot, keyed by epoch day
+     */
+    public LeaderboardStore getBestDays() {
+        return mBestDays;
+    }
+
+    /**
+     * Get the best ISO weeks on foot, keyed as in RollupStore.getIsoWeek()
+     */
+    public LeaderboardStore getBestWeeks() {
+        return mBestWeeks;
+    }
+
+    /**
+     * Get the sums and averages of the last 7, 30 and 365 days on foot, moved on to the
+     * current day
+     */
+    public synchronized RollingTotals getRollingTotals() {
+        if (!mRollingTotalsLoaded) {
+            loadRollingTotals();
+        }
+        mRollingTotals.advanceTo(new DayBoundary().getEpochDay(System.currentTimeMillis()));
+        return mRollingTotals;
+    }
+
+    /**
+     * Feed one detection to the session segmenter and the timeline
+     *
+     * @param timestampMillis Wall clock time of the detection
+     * @param activityType The most probable activity (see ActivityTypes)
+     * @param confidence The confidence of the most probable activity, 0 to 100
+     */
+    public void onDetection(long timestampMillis, int activityType, int confidence) {
+        mSegmenter.process(timestampMillis, activityType, confidence);
+        try {
+            mTimeline.add(timestampMillis, activityType);
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the time of the last detection handed to onDetection(), from the end of the
+     * timeline, which outlives the process
+     *
+     * @return The time, or -1 if there was none
+     */
+    public long getLastDetectionMillis() {
+        try {
+            int size = mTimeline.size();
+            return size > 0 ? mTimeline.getEnd(size - 1) : -1;
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * End the session going on if its activity hasn't been seen for longer than the gap
+     * tolerance, for example when detections have stopped
+     *
+     * @param nowMillis Wall clock time now
+     */
+    public void closeIdle(long nowMillis) {
+        mSegmenter.closeIdle(nowMillis);
+    }
+
+    /**
+     * Get the sessions found so far, sorted by start
+     */
+    public SessionStore getSessions() {
+        return mSessions;
+    }
+
+    /**
+     * Get the timeline of every detection
+     */
+    public ActivityTimeline getTimeline() {
+        return mTimeline;
+    }
+
+    /**
+     * Get the quantile sketches of day totals and session lengths
+     */
+    public QuantileStatistics getQuantiles() {
+        return mQuantiles;
+    }
+
+    public MinuteFenwickIndex getOnFootSums() {
+        return mOnFootSums;
+    }
+
+    /**
+     * Get the index of every counted minute, reading the day bitmaps into it the first
+     * time. Buckets closed since are already in it.
+     */
+    public synchronized MinuteIndex getMinuteIndex() {
+        if (!mMinuteIndexLoaded) {
+            try {
+                mMinuteIndex.addDays(mDayBitmaps);
+                mMinuteIndexLoaded = true;
+            } catch (IOException e) {
+                Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+            }
+        }
+        return mMinuteIndex;
+    }
+
+    /**
+     * Write the statistics to storage
+     */
+    public void flush() {
+        mDailyTotals.flush();
+        mRollups.flush();
+        mDayBitmaps.flush();
+        mOnFootSums.flush();
+        mBestDays.flush();
+        mBestWeeks.flush();
+        mSessions.flush();
+        mTimeline.flush();
+        try {
+            mQuantiles.save(mQuantilesFile);
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Carry today, yesterday and the highest day on foot from the counting state into an
+     * empty daily history. A highest day without a date is kept on the day before
+     * yesterday. Empty leaderboards are then filled from the daily history.
+     */
+    public synchronized void importTotals(BucketState state) {
+        try {
+            if (!state.started || state.startOfDay <= 0 || mDailyTotals.getFirstDay() >= 0) {
+                loadLeaderboards();
+                return;
+            }
+
+            DayBoundary days = new DayBoundary();
+            int today = days.getEpochDay(state.startOfDay);
+            int highestDay = days.getEpochDay(state.highestDate);
+            if (state.highestDate > 0 && highestDay < today) {
+                mDailyTotals.setMinutes(highestDay, ActivityTypes.ON_FOOT,
+                        state.minutesHighest);
+            } else if (state.highestDate <= 0 && state.minutesHighest
+                    > Math.max(state.minutesToday, state.minutesYesterday)) {
+                mDailyTotals.setMinutes(today - 2, ActivityTypes.ON_FOOT,
+                        state.minutesHighest);
+            }
+            if (state.highestDate <= 0 || highestDay < today - 1) {
+                mDailyTotals.setMinutes(today - 1, ActivityTypes.ON_FOOT,
+                        state.minutesYesterday);
+            }
+            mDailyTotals.setMinutes(today, ActivityTypes.ON_FOOT, state.minutesToday);
+            loadLeaderboards();
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Fill the rolling totals from the last year of the daily history
+     */
+    private synchronized void loadRollingTotals() {
+        try {
+            int today = new DayBoundary().getEpochDay(System.currentTimeMillis());
+            mRollingTotals.load(mDailyTotals, today);
+            mRollingTotalsLoaded = true;
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Put the new total of a day, and of its week, on the leaderboards
+     */
+    private void updateLeaderboards(int epochDay) {
+        try {
+            mBestDays.update(epochDay, mDailyTotals.getMinutes(epochDay, ActivityTypes.ON_FOOT));
+            int week = RollupStore.getIsoWeek(epochDay);
+            mBestWeeks.update(week, getWeekMinutesOnFoot(week));
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Fill empty leaderboards from the daily history, which is read once
+     */
+    private void loadLeaderboards() throws IOException {
+        int firstDay = mDailyTotals.getFirstDay();
+        if (firstDay < 0 || mBestDays.size() > 0 || mBestWeeks.size() > 0) {
+            return;
+        }
+        int lastDay = mDailyTotals.getLastDay();
+        for (int day = firstDay; day <= lastDay; day++) {
+            int minutes = mDailyTotals.getMinutes(day, ActivityTypes.ON_FOOT);
+            if (minutes > 0) {
+                mBestDays.update(day, minutes);
+            }
+        }
+        for (int week = RollupStore.getIsoWeek(firstDay);
+                week <= RollupStore.getIsoWeek(lastDay); week++) {
+            int minutes = getWeekMinutesOnFoot(week);
+            if (minutes > 0) {
+                mBestWeeks.update(week, minutes);
+            }
+        }
+    }
+
+    /**
+     * Add up the minutes on foot of the seven days of an ISO week
+     */
+    private int getWeekMinutesOnFoot(int week) throws IOException {
+
+        // Weeks start on Monday, three days before the Thursday of epoch day 0
+        int firstDay = week * 7 - 3;
+        int minutes = 0;
+        for (int day = Math.max(0, firstDay); day < firstDay + 7; day++) {
+            minutes += mDailyTotals.getMinutes(day, ActivityTypes.ON_FOOT);
+        }
+        return minutes;
+    }
+}
@@ -0,0 +1,352 @@
+package com.janacare.walkmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Every detection, run-length encoded into runs of one activity and kept in a
+ * memory-mapped file.
+ * <p>
+ * A run starts at the first detection of its activity and lasts until the next run starts.
+ * If no detection arrives for longer than the gap limit, the run ends at its last detection
+ * and the time until the next one is not covered. The file has a 16 byte header (magic,
+ * number of runs), followed by one 16 byte record per run: the start in milliseconds, the
+ * length in milliseconds and the activity type.
+ * <p>
+ * The runs never overlap, so they are their own interval tree: "what was I doing at t" is a
+ * binary search on the starts. Each activity also keeps its runs, in order, in memory with
+ * the total length of the runs before each one. The time spent in an activity within any
+ * window is then two binary searches and a subtraction.
+ */
+public class ActivityTimeline {
+
+    // Size of the file header in bytes
+    private static final int HEADER_SIZE = 16;
+
+    // Size of one record in bytes
+    private static final int RECORD_SIZE = 16;
+
+    // Marks the start of the file ("WKA1")
+    private static final int FILE_MAGIC = 0x574B4131;
+
+    // Offsets in the header
+    private static final int COUNT_OFFSET = 4;
+
+    // Offsets in a record
+    private static final int LENGTH_OFFSET = 8;
+    private static final int TYPE_OFFSET = 12;
+
+    // The mapping grows by this many records at a time
+    private static final int GROWTH_RECORDS = 1024;
+
+    // Store the timeline file handle
+    private final File mFile;
+
+    // A run ends at its last detection if the next one is further away than this
+    private final long mMaxGapMillis;
+
+    // Open file and its mapping, or null while the timeline is closed
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    // Number of runs, and the number that fit in the current mapping
+    private int mCount;
+    private int mCapacity;
+
+    // The runs of each activity: their index in the file, and the total length of the
+    // runs of that activity before them
+    private final int[][] mTypeRuns = new int[ActivityTypes.COUNT][];
+    private final long[][] mTypeLengthBefore = new long[ActivityTypes.COUNT][];
+    private final int[] mTypeCounts = new int[ActivityTypes.COUNT];
+
+    /**
+     * Create a timeline kept in the given file, with the bucket timeout as the gap limit
+     *
+     * @param file The timeline file
+     */
+    public ActivityTimeline(File file) {
+        this(file, ActivityPipeline.BUCKET_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Create a timeline kept in the given file. The file is opened when first used.
+     *
+     * @param file The timeline file
+     * @param maxGapMillis A run ends at its last detection if the next one is further away
+     */
+    public ActivityTimeline(File file, long maxGapMillis) {
+        mFile = file;
+        mMaxGapMillis = maxGapMillis;
+    }
+
+    /**
+     * Add a detection. Detections before the end of the timeline are ignored.
+     *
+     * @param timestampMillis Wall clock time of the detection
+     * @param activityType The most probable activity (see ActivityTypes)
+     */
+    public synchronized void add(long timestampMillis, int activityType) throws IOException {
+        open();
+        if (activityType < 0 || activityType >= ActivityTypes.COUNT) {
+            return;
+        }
+        if (mCount == 0) {
+            append(timestampMillis, activityType);
+            return;
+        }
+
+        int last = mCount - 1;
+        long end = getEnd(last);
+        if (timestampMillis < end) {
+            return;
+        }
+        boolean gap = timestampMillis - end > mMaxGapMillis;
+        if (!gap && getType(last) == activityType) {
+            setEnd(last, timestampMillis);
+        } else {
+            if (!gap) {
+
+                // The last run lasts until this one starts
+                setEnd(last, timestampMillis);
+            }
+            append(timestampMillis, activityType);
+        }
+    }
+
+    /**
+     * Get the number of runs
+     */
+    public synchronized int size() throws IOException {
+        open();
+        return mCount;
+    }
+
+    /**
+     * Find what was being done at a time
+     *
+     * @param timeMillis Wall clock time
+     * @return The activity (see ActivityTypes), or -1 if the time isn't covered
+     */
+    public synchronized int getActivityAt(long timeMillis) throws IOException {
+        open();
+        int run = findRun(timeMillis);
+        if (run < 0 || timeMillis > getEnd(run)) {
+            return -1;
+        }
+        return getType(run);
+    }
+
+    /**
+     * Get the time spent in an activity within a window
+     *
+     * @param activityType The activity (see ActivityTypes)
+     * @param fromMillis Start of the window
+     * @param toMillis End of the window
+     */
+    public synchronized long getOverlapMillis(int activityType, long fromMillis,
+            long toMillis) throws IOException {
+        open();
+        int count = mTypeCounts[activityType];
+        if (count == 0 || fromMillis >= toMillis) {
+            return 0;
+        }
+        int[] runs = mTypeRuns[activityType];
+
+        // The first run that ends after the window starts, and the first that starts
+        // after it ends
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEnd(runs[mid]) <= fromMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int first = low;
+        high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getStart(runs[mid]) < toMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int end = low;
+        if (first >= end) {
+            return 0;
+        }
+
+        // Every run in between, less what the two outer runs have outside the window
+        int last = end - 1;
+        long total = mTypeLengthBefore[activityType][last] + getLength(runs[last])
+                - mTypeLengthBefore[activityType][first];
+        total -= Math.max(0, fromMillis - getStart(runs[first]));
+        total -= Math.max(0, getEnd(runs[last]) - toMillis);
+        return total;
+    }
+
+    /**
+     * Get the first detection of a run
+     */
+    public synchronized long getStart(int index) throws IOException {
+        open();
+        return mBuffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+    }
+
+    /**
+     * Get the end of a run: the start of the next one, or its last detection
+     */
+    public synchronized long getEnd(int index) throws IOException {
+        return getStart(index) + getLength(index);
+    }
+
+    /**
+     * Get the activity of a run (see ActivityTypes)
+     */
+    public synchronized int getType(int index) throws IOException {
+        open();
+        return mBuffer.get(HEADER_SIZE + index * RECORD_SIZE + TYPE_OFFSET);
+    }
+
+    /**
+     * Write the mapped runs to storage
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Close the file. The timeline opens it again when it is next used.
+     */
+    public synchronized void close() throws IOException {
+        if (mRandomAccessFile != null) {
+            flush();
+            mBuffer = null;
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            mCount = 0;
+            mCapacity = 0;
+            Arrays.fill(mTypeCounts, 0);
+        }
+    }
+
+    /**
+     * Find the last run that starts at or before a time
+     *
+     * @return The index of the run, or -1 if every run starts later
+     */
+    private int findRun(long timeMillis) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mBuffer.getLong(HEADER_SIZE + mid * RECORD_SIZE) <= timeMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    private int getLength(int index) {
+        return mBuffer.getInt(HEADER_SIZE + index * RECORD_SIZE + LENGTH_OFFSET);
+    }
+
+    private void setEnd(int index, long endMillis) {
+        long length = endMillis - mBuffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+        mBuffer.putInt(HEADER_SIZE + index * RECORD_SIZE + LENGTH_OFFSET,
+                (int) Math.min(length, Integer.MAX_VALUE));
+    }
+
+    private void append(long startMillis, int activityType) throws IOException {
+        if (mCount == mCapacity) {
+            map(mCapacity + GROWTH_RECORDS);
+        }
+        int offset = HEADER_SIZE + mCount * RECORD_SIZE;
+        mBuffer.putLong(offset, startMillis);
+        mBuffer.putInt(offset + LENGTH_OFFSET, 0);
+        mBuffer.put(offset + TYPE_OFFSET, (byte) activityType);
+        indexRun(mCount, activityType);
+        mCount++;
+        mBuffer.putInt(COUNT_OFFSET, mCount);
+    }
+
+    /**
+     * Add a run to the runs of its activity
+     */
+    private void indexRun(int index, int activityType) {
+        int count = mTypeCounts[activityType];
+        int[] runs = mTypeRuns[activityType];
+        long[] lengthBefore = mTypeLengthBefore[activityType];
+        if (runs == null) {
+            runs = new int[64];
+            lengthBefore = new long[64];
+        } else if (count == runs.length) {
+            runs = Arrays.copyOf(runs, count * 2);
+            lengthBefore = Arrays.copyOf(lengthBefore, count * 2);
+        }
+        runs[count] = index;
+        lengthBefore[count] = count == 0 ? 0
+                : lengthBefore[count - 1] + getLength(runs[count - 1]);
+        mTypeRuns[activityType] = runs;
+        mTypeLengthBefore[activityType] = lengthBefore;
+        mTypeCounts[activityType] = count + 1;
+    }
+
+    /**
+     * Open and map the file, creating it if needed, and index the runs of each activity
+     */
+    private void open() throws IOException {
+        if (mRandomAccessFile != null) {
+            return;
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long length = mRandomAccessFile.length();
+        int records = length < HEADER_SIZE ? 0 : (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+        map(Math.max(records, GROWTH_RECORDS));
+        Arrays.fill(mTypeCounts, 0);
+
+        if (length < HEADER_SIZE || mBuffer.getInt(0) != FILE_MAGIC) {
+
+            // A new or unreadable file starts out empty
+            mBuffer.putInt(0, FILE_MAGIC);
+            mBuffer.putInt(COUNT_OFFSET, 0);
+            mCount = 0;
+            return;
+        }
+
+        int count = Math.max(0, Math.min(mBuffer.getInt(COUNT_OFFSET), records));
+        mCount = 0;
+        for (int i = 0; i < count; i++) {
+            int type = mBuffer.get(HEADER_SIZE + i * RECORD_SIZE + TYPE_OFFSET);
+            if (type < 0 || type >= ActivityTypes.COUNT) {
+                break;
+            }
+            indexRun(i, type);
+            mCount++;
+        }
+    }
+
+    /**
+     * Map enough of the file to hold the given number of records
+     */
+    private void map(int capacity) throws IOException {
+        FileChannel channel = mRandomAccessFile.getChannel();
+        mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        mCapacity = capacity;
+    }
+}
@@ -0,0 +1,46 @@
+package com.janacare.walkmeter;
+
+/**
+ * Activity type codes used by the counting pipeline. The values mirror the
+ * DetectedActivity constants so that the pipeline can run without Google Play
+ * services on the classpath.
+ */
+public final class ActivityTypes {
+
+    public static final int IN_VEHICLE = 0;
+    public static final int ON_BICYCLE = 1;
+    public static final int ON_FOOT = 2;
+    public static final int STILL = 3;
+    public static final int UNKNOWN = 4;
+    public static final int TILTING = 5;
+
+    // Number of distinct activity types
+    public static final int COUNT = 6;
+
+    private ActivityTypes() {
+    }
+
+    /**
+     * Map detected activity types to strings
+     *
+     * @param activityType The detected activity type
+     * @return A user-readable name for the type
+     */
+    public static String getName(int activityType) {
+        switch (activityType) {
+        case IN_VEHICLE:
+            return "in_vehicle";
+        case ON_BICYCLE:
+            return "on_bicycle";
+        case ON_FOOT:
+            return "on_foot";
+        case STILL:
+            return "still";
+        case UNKNOWN:
+            return "unknown";
+        case TILTING:
+            return "tilting";
+        }
+        return "unknown";
+    }
+}
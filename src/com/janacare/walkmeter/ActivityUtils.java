@@ -41,6 +41,17 @@ public final class ActivityUtils {
     public static final int DETECTION_INTERVAL_MILLISECONDS =
             MILLISECONDS_PER_SECOND * DETECTION_INTERVAL_SECONDS;
 
+    // Time a new activity must last before it replaces the previous activity, and the
+    // margin over 50% confidence it needs in each detection (see TransitionFilter)
+    public static final long TRANSITION_MIN_DWELL_MILLIS = 2L * DETECTION_INTERVAL_MILLISECONDS;
+    public static final int TRANSITION_CONFIDENCE_MARGIN = 10;
+
+    // How missing detections are filled before they are counted, and the longest gap that
+    // is filled (see GapFiller). Carrying an activity forward would count minutes on foot
+    // that may never have happened.
+    public static final int GAP_FILL_POLICY = GapFiller.UNKNOWN;
+    public static final long GAP_FILL_MAX_MILLIS = GapFiller.DEFAULT_MAX_FILL_MILLIS;
+
     // Shared Preferences repository name
     public static final String SHARED_PREFERENCES =
             "com.janacare.walkmeter.SHARED_PREFERENCES";
@@ -49,15 +60,15 @@ public final class ActivityUtils {
     public static final String KEY_PREVIOUS_ACTIVITY_TYPE =
             "com.janacare.walkmeter.KEY_PREVIOUS_ACTIVITY_TYPE";
 
-    // Constants for constructing the log file name
-    public static final String LOG_FILE_NAME_PREFIX = "activityrecognition";
-    public static final String LOG_FILE_NAME_SUFFIX = ".log";
+    // Name of the binary activity history archive
+    public static final String ACTIVITY_LOG_FILE_NAME = "activityrecognition.bin";
+
+    // Name of the memory-mapped activity history file
+    public static final String ACTIVITY_HISTORY_FILE_NAME = "activityhistory.dat";
 
-    // Keys in the repository for storing the log file info
-    public static final String KEY_LOG_FILE_NUMBER =
-            "com.janacare.walkmeter.KEY_LOG_FILE_NUMBER";
-    public static final String KEY_LOG_FILE_NAME =
-            "com.janacare.walkmeter.KEY_LOG_FILE_NAME";
+    // Directory and name of the human-readable activity log on external storage
+    public static final String EXTERNAL_LOG_DIR_NAME = "activityrecognition";
+    public static final String EXTERNAL_LOG_FILE_NAME = "ActivityLog.txt";
 
 
 }
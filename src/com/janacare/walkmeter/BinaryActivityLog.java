@@ -0,0 +1,230 @@
+package com.janacare.walkmeter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact archive of the detection history, kept as a file of ActivitySegments.
+ * <p>
+ * The archive is filled from a MappedHistoryStore, which holds every record from the
+ * moment it is detected. archive() copies the records the file doesn't have yet, one full
+ * segment at a time, so a record costs 3 to 5 bytes here instead of a store record's 12.
+ * Records that don't fill a segment yet stay in the store until more arrive, and a
+ * segment cut short by the process dying is removed and written again from the store, so
+ * the archive never loses a record.
+ */
+public class BinaryActivityLog {
+
+    // Number of records in each archived segment
+    public static final int SEGMENT_CAPACITY = 64;
+
+    // Store the log file handle
+    private final File mFile;
+
+    // Segment reused for every archive write
+    private final ActivitySegment mSegment = new ActivitySegment(SEGMENT_CAPACITY);
+
+    // Number of store records in the file, or -1 until the file has been checked
+    private int mArchived = -1;
+
+    /**
+     * Create a log stored in the given file
+     *
+     * @param file The log file
+     */
+    public BinaryActivityLog(File file) {
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Append every full segment of store records that the file doesn't have yet
+     *
+     * @param store The history the archive is filled from
+     * @return The number of records archived
+     */
+    public synchronized int archive(MappedHistoryStore store) throws IOException {
+        if (mArchived < 0) {
+            mArchived = recover();
+        }
+
+        int available = store.size() - mArchived;
+        if (available < SEGMENT_CAPACITY) {
+            return 0;
+        }
+
+        MappedHistoryStore.Cursor cursor = store.newCursor();
+        int archived = 0;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mFile, true));
+        try {
+            while (available - archived >= SEGMENT_CAPACITY) {
+                mSegment.clear();
+                for (int i = 0; i < SEGMENT_CAPACITY; i++) {
+                    cursor.moveTo(mArchived + archived + i);
+                    mSegment.add(cursor.getTimestamp(), cursor.getActivityType(),
+                            cursor.getConfidence());
+                }
+                mSegment.writeTo(out);
+                archived += SEGMENT_CAPACITY;
+            }
+            out.close();
+        } catch (IOException e) {
+
+            // Count the intact segments again before the next write
+            mArchived = -1;
+            closeQuietly(out);
+            throw e;
+        }
+        mArchived += archived;
+        return archived;
+    }
+
+    /**
+     * Read every intact segment in the file
+     */
+    public synchronized List<ActivitySegment> readSegments() throws IOException {
+        List<ActivitySegment> segments = new ArrayList<ActivitySegment>();
+
+        if (mFile.exists()) {
+            InputStream in = new BufferedInputStream(new FileInputStream(mFile));
+            try {
+                ActivitySegment segment;
+                while ((segment = readSegment(in)) != null) {
+                    segments.add(segment);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Render the whole archive as human-readable lines
+     */
+    public List<String> readText() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (ActivitySegment segment : readSegments()) {
+            segment.appendText(lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Forget the recovery check, after the file has been deleted from outside
+     */
+    public synchronized void reset() {
+        mArchived = -1;
+    }
+
+    /**
+     * Cut the file after its last intact segment
+     *
+     * @return The number of records in the intact segments
+     */
+    private int recover() throws IOException {
+        if (!mFile.exists()) {
+            return 0;
+        }
+
+        long validLength = 0;
+        int records = 0;
+        CountingInputStream in = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            ActivitySegment segment;
+            while ((segment = readSegment(in)) != null) {
+                validLength = in.getCount();
+                records += segment.size();
+            }
+        } finally {
+            in.close();
+        }
+
+        if (validLength != mFile.length()) {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(validLength);
+            } finally {
+                file.close();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Close a stream after a failed write
+     */
+    private static void closeQuietly(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The write already failed
+        }
+    }
+
+    /**
+     * Read one segment, treating a damaged segment as the end of the log
+     */
+    private static ActivitySegment readSegment(InputStream in) {
+        try {
+            return ActivitySegment.readFrom(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Counts the bytes read through it
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.janacare.walkmeter;
+
+/**
+ * Receives every one minute bucket that an ActivityPipeline counts. Listeners keep their
+ * own statistics from the stream of closed buckets, so the pipeline itself only keeps the
+ * daily totals.
+ */
+public interface BucketListener {
+
+    /**
+     * Called once for each bucket that is closed and counted. Buckets that are discarded
+     * after a gap in the detections are not reported.
+     *
+     * @param bucketStartMillis Wall clock time the bucket started
+     * @param epochDay The local epoch day of the bucket (see DayBoundary)
+     * @param minuteOfDay The local clock minute of the bucket, 0 to 1439
+     * @param activityType The activity that decided the bucket (see ActivityTypes)
+     * @param confidence The confidence of that activity, 0 to 100
+     */
+    void onBucketClosed(long bucketStartMillis, int epochDay, int minuteOfDay,
+            int activityType, int confidence);
+}
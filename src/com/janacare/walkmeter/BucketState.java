@@ -0,0 +1,44 @@
+package com.janacare.walkmeter;
+
+/**
+ * The counting state of an ActivityPipeline. It is kept in memory between detections and
+ * only written to storage when a bucket closes or the process is about to be killed.
+ */
+public class BucketState {
+
+    // True once the first detection has been seen
+    boolean started;
+
+    // Start time of the current bucket, and its most confident detection so far
+    long bucketStart;
+    int bucketActivity;
+    int bucketConfidence;
+
+    // Time of the first counted minute of the current day
+    long startOfDay;
+
+    // Minutes on foot today, yesterday and on the best day so far
+    int minutesToday;
+    int minutesYesterday;
+    int minutesHighest;
+
+    // Time at which the best day was last updated
+    long highestDate;
+
+    // True if anything changed since the state was last saved
+    boolean dirty;
+
+    /**
+     * Check whether the state has changes that have not been saved yet
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Note that the state has been saved
+     */
+    public void clearDirty() {
+        dirty = false;
+    }
+}
@@ -2,7 +2,13 @@ package com.janacare.walkmeter;
 
 public class Constants {
 	public static final String KEY_STEPS_TODAY = "steps_today";
-	public static final String KEY_STEPS_YESTERDAY = "steps_today";
-	public static final String KEY_STEPS_HIGHEST = "steps_today";
-	
-}
\ No newline at end of file
+	public static final String KEY_STEPS_YESTERDAY = "steps_yesterday";
+	public static final String KEY_STEPS_HIGHEST = "minutes_highest";
+	public static final String KEY_HIGHEST_DATE = "highest_date";
+	public static final String KEY_HIGHEST_DATE_MILLIS = "highest_date_millis";
+	public static final String KEY_START_OF_DAY = "Start_of_day";
+	public static final String KEY_BUCKET_START_TIME = "bucket_start_time";
+	public static final String KEY_BUCKET_ACTIVITY_TYPE = "activityType";
+	public static final String KEY_BUCKET_CONFIDENCE = "confidence";
+
+}
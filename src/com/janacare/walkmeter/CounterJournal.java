@@ -0,0 +1,195 @@
+package com.janacare.walkmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the counting state. Every save appends one fixed-size binary
+ * record holding the whole BucketState, so replaying the journal means finding the last
+ * intact record. A record that was only partly written when the process died fails its
+ * checksum and is dropped, together with anything after it.
+ * <p>
+ * The journal is meant to be truncated after its content has been checkpointed elsewhere.
+ */
+public class CounterJournal {
+
+    // Size of one record in bytes
+    public static final int RECORD_SIZE = 48;
+
+    // Marks the start of every record ("WKJ1")
+    private static final int RECORD_MAGIC = 0x574B4A31;
+
+    // Offset of the checksum, which covers every byte before it
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+
+    // Store the journal file handle
+    private final File mFile;
+
+    // Open handle used for appends, or null until the first append
+    private RandomAccessFile mWriter;
+    private FileChannel mChannel;
+
+    // Number of intact records in the journal
+    private int mRecordCount;
+
+    // Reused record buffer and checksum
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Create a journal stored in the given file. Nothing is opened until the journal
+     * is first used.
+     *
+     * @param file The journal file
+     */
+    public CounterJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Rebuild the counting state from the journal
+     *
+     * @param state The state to overwrite with the last intact record
+     * @return true if the journal held at least one intact record
+     */
+    public synchronized boolean replay(BucketState state) throws IOException {
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        RandomAccessFile reader = new RandomAccessFile(mFile, "r");
+        try {
+            return scan(reader, state) > 0;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Append the counting state to the journal and force it to storage
+     *
+     * @param state The state to save
+     */
+    public synchronized void append(BucketState state) throws IOException {
+        openWriter();
+
+        ByteBuffer record = mRecord;
+        record.clear();
+        record.putInt(RECORD_MAGIC);
+        record.putLong(state.bucketStart);
+        record.putLong(state.startOfDay);
+        record.putLong(state.highestDate);
+        record.putInt(state.minutesToday);
+        record.putInt(state.minutesYesterday);
+        record.putInt(state.minutesHighest);
+        record.put((byte) state.bucketActivity);
+        record.put((byte) state.bucketConfidence);
+        record.putShort((short) 0);
+
+        mCrc.reset();
+        mCrc.update(record.array(), 0, CRC_OFFSET);
+        record.putInt((int) mCrc.getValue());
+        record.flip();
+
+        while (record.hasRemaining()) {
+            mChannel.write(record);
+        }
+        mChannel.force(false);
+        mRecordCount++;
+    }
+
+    /**
+     * Discard every record, once the state has been checkpointed
+     */
+    public synchronized void truncate() throws IOException {
+        openWriter();
+        mChannel.truncate(0);
+        mChannel.position(0);
+        mChannel.force(false);
+        mRecordCount = 0;
+    }
+
+    /**
+     * Get the number of records appended since the journal was last truncated
+     */
+    public synchronized int getRecordCount() throws IOException {
+        openWriter();
+        return mRecordCount;
+    }
+
+    /**
+     * Close the journal file
+     */
+    public synchronized void close() throws IOException {
+        if (mWriter != null) {
+            mWriter.close();
+            mWriter = null;
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Open the journal for appending, dropping any torn record at its end
+     */
+    private void openWriter() throws IOException {
+        if (mWriter != null) {
+            return;
+        }
+
+        RandomAccessFile writer = new RandomAccessFile(mFile, "rw");
+        int count = scan(writer, new BucketState());
+        long validLength = (long) count * RECORD_SIZE;
+        if (writer.length() != validLength) {
+            writer.setLength(validLength);
+        }
+
+        mWriter = writer;
+        mChannel = writer.getChannel();
+        mChannel.position(validLength);
+        mRecordCount = count;
+    }
+
+    /**
+     * Read every intact record from the start of the file
+     *
+     * @param file The journal file
+     * @param state Receives the content of the last intact record
+     * @return The number of intact records before the first damaged one
+     */
+    private int scan(RandomAccessFile file, BucketState state) throws IOException {
+        byte[] bytes = new byte[RECORD_SIZE];
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+
+        int count = 0;
+        file.seek(0);
+        long records = file.length() / RECORD_SIZE;
+        for (long i = 0; i < records; i++) {
+            file.readFully(bytes);
+
+            crc.reset();
+            crc.update(bytes, 0, CRC_OFFSET);
+            if (record.getInt(0) != RECORD_MAGIC
+                    || record.getInt(CRC_OFFSET) != (int) crc.getValue()) {
+                break;
+            }
+
+            record.position(4);
+            state.started = true;
+            state.bucketStart = record.getLong();
+            state.startOfDay = record.getLong();
+            state.highestDate = record.getLong();
+            state.minutesToday = record.getInt();
+            state.minutesYesterday = record.getInt();
+            state.minutesHighest = record.getInt();
+            state.bucketActivity = record.get();
+            state.bucketConfidence = record.get();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,180 @@
+package com.janacare.walkmeter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Loads and saves the counting state of the ActivityPipeline.
+ * <p>
+ * Saves are appended to a small binary CounterJournal instead of rewriting the shared
+ * preferences file. Every CHECKPOINT_INTERVAL saves the state is checkpointed to the
+ * shared preferences and the journal is truncated. Loading reads the checkpoint, then
+ * replays the journal on top of it.
+ */
+public class CounterStore {
+
+    // Name of the journal file and of the directory that holds it. The directory is kept
+    // apart from getFilesDir(), which is emptied when the log files are removed.
+    private static final String JOURNAL_DIR_NAME = "counters";
+    private static final String JOURNAL_FILE_NAME = "counters.journal";
+
+    // Number of journal records between two checkpoints
+    private static final int CHECKPOINT_INTERVAL = 256;
+
+    // Format of the highest date string saved by older versions, from Date.toString(),
+    // which always writes English day and month names whatever the locale. The second
+    // pattern reads it without the zone, in case the zone name isn't known.
+    private static final String LEGACY_DATE_PATTERN = "EEE MMM dd HH:mm:ss zzz yyyy";
+    private static final String LEGACY_DATE_NO_ZONE_PATTERN = "EEE MMM dd HH:mm:ss yyyy";
+
+    // Store the shared preferences repository handle
+    private final SharedPreferences mPrefs;
+
+    // Journal of the saves since the last checkpoint
+    private final CounterJournal mJournal;
+
+    /**
+     * Open the counter store of the app
+     *
+     * @param context A Context for the current app
+     */
+    public CounterStore(Context context) {
+        mPrefs = context.getSharedPreferences(ActivityUtils.SHARED_PREFERENCES,
+                Context.MODE_PRIVATE);
+
+        File dir = context.getDir(JOURNAL_DIR_NAME, Context.MODE_PRIVATE);
+        mJournal = new CounterJournal(new File(dir, JOURNAL_FILE_NAME));
+    }
+
+    /**
+     * Read the saved counting state, or an empty state if nothing was saved yet
+     */
+    public BucketState load() {
+        BucketState state = new BucketState();
+
+        if (mPrefs.contains(Constants.KEY_BUCKET_START_TIME)) {
+            state.started = true;
+            state.bucketStart = mPrefs.getLong(Constants.KEY_BUCKET_START_TIME, 0);
+            state.bucketActivity = mPrefs.getInt(Constants.KEY_BUCKET_ACTIVITY_TYPE, 0);
+            state.bucketConfidence = mPrefs.getInt(Constants.KEY_BUCKET_CONFIDENCE, 0);
+            state.startOfDay = mPrefs.getLong(Constants.KEY_START_OF_DAY, 0);
+            state.minutesToday = mPrefs.getInt(Constants.KEY_STEPS_TODAY, 0);
+            state.minutesYesterday = mPrefs.getInt(Constants.KEY_STEPS_YESTERDAY, 0);
+            state.minutesHighest = mPrefs.getInt(Constants.KEY_STEPS_HIGHEST, 0);
+            state.highestDate = mPrefs.getLong(Constants.KEY_HIGHEST_DATE_MILLIS, 0);
+
+            // Older versions only saved the highest date as a string
+            if (state.highestDate <= 0) {
+                state.highestDate = parseLegacyDate(
+                        mPrefs.getString(Constants.KEY_HIGHEST_DATE, null));
+            }
+        }
+
+        // Anything in the journal is newer than the checkpoint
+        try {
+            mJournal.replay(state);
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+        }
+        return state;
+    }
+
+    /**
+     * Save the counting state if it has unsaved changes
+     *
+     * @param state The state to save
+     */
+    public void flush(BucketState state) {
+        if (!state.isDirty()) {
+            return;
+        }
+
+        try {
+            mJournal.append(state);
+            if (mJournal.getRecordCount() >= CHECKPOINT_INTERVAL) {
+                checkpoint(state);
+            }
+
+        // If the journal can't be written, save straight to the shared preferences
+        } catch (IOException e) {
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+            writePreferences(state);
+
+            // The journal is now older than the preferences and must not be replayed
+            try {
+                mJournal.truncate();
+            } catch (IOException truncateError) {
+                Log.e(ActivityUtils.APPTAG, truncateError.getMessage(), truncateError);
+            }
+        }
+
+        state.clearDirty();
+    }
+
+    /**
+     * Write the counting state to the shared preferences and empty the journal
+     *
+     * @param state The state to checkpoint
+     */
+    public void checkpoint(BucketState state) throws IOException {
+        writePreferences(state);
+        mJournal.truncate();
+    }
+
+    private void writePreferences(BucketState state) {
+        Editor editor = mPrefs.edit();
+        editor.putLong(Constants.KEY_BUCKET_START_TIME, state.bucketStart);
+        editor.putInt(Constants.KEY_BUCKET_ACTIVITY_TYPE, state.bucketActivity);
+        editor.putInt(Constants.KEY_BUCKET_CONFIDENCE, state.bucketConfidence);
+        editor.putLong(Constants.KEY_START_OF_DAY, state.startOfDay);
+        editor.putInt(Constants.KEY_STEPS_TODAY, state.minutesToday);
+        editor.putInt(Constants.KEY_STEPS_YESTERDAY, state.minutesYesterday);
+        editor.putInt(Constants.KEY_STEPS_HIGHEST, state.minutesHighest);
+        editor.putLong(Constants.KEY_HIGHEST_DATE_MILLIS, state.highestDate);
+
+        // The old date string is kept, so load() can still fall back to it if the highest
+        // day hasn't been imported into the daily totals yet
+        editor.commit();
+    }
+
+    /**
+     * Read a highest date saved by an older version. The names are parsed in Locale.US, as
+     * Date.toString() wrote them, not in the default locale. If the zone can't be read, the
+     * date is taken in the default time zone.
+     *
+     * @param date The saved date string, or null
+     * @return The date in milliseconds, or 0 if it is missing or can't be read
+     */
+    private static long parseLegacyDate(String date) {
+        if (date == null) {
+            return 0;
+        }
+        try {
+            return new SimpleDateFormat(LEGACY_DATE_PATTERN, Locale.US).parse(date).getTime();
+        } catch (ParseException e) {
+
+            // Drop the zone, the fifth field, and try again
+            String[] fields = date.trim().split("\\s+");
+            if (fields.length == 6) {
+                String withoutZone = fields[0] + " " + fields[1] + " " + fields[2] + " "
+                        + fields[3] + " " + fields[5];
+                try {
+                    return new SimpleDateFormat(LEGACY_DATE_NO_ZONE_PATTERN, Locale.US)
+                            .parse(withoutZone).getTime();
+                } catch (ParseException noZoneError) {
+                    // Fall through and report the first error
+                }
+            }
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
+            return 0;
+        }
+    }
+}
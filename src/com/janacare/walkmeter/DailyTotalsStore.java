@@ -0,0 +1,313 @@
+package com.janacare.walkmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The minutes of every activity type on every day, kept in a memory-mapped file.
+ * <p>
+ * The file starts with a header (magic, number of types, first day, number of days, then
+ * the highest day of each type), followed by one int slot per day and activity type, day
+ * after day from the first day. A day is read in O(1), and the whole history is one
+ * sequential read. The highest day of each type is updated with every minute, so the best
+ * day is read from the header, not from a separate preference.
+ */
+public class DailyTotalsStore implements BucketListener {
+
+    // Marks the start of the file ("WKT1")
+    private static final int FILE_MAGIC = 0x574B5431;
+
+    // Offsets in the header
+    private static final int TYPES_OFFSET = 4;
+    private static final int FIRST_DAY_OFFSET = 8;
+    private static final int DAYS_OFFSET = 12;
+    private static final int HIGHEST_OFFSET = 16;
+
+    // Size of the file header in bytes
+    private static final int HEADER_SIZE = HIGHEST_OFFSET + 4 * ActivityTypes.COUNT;
+
+    // Size of the slots of one day in bytes
+    private static final int DAY_SIZE = 4 * ActivityTypes.COUNT;
+
+    // The mapping grows by this many days at a time
+    private static final int GROWTH_DAYS = 366;
+
+    // Store the totals file handle
+    private final File mFile;
+
+    // Open file and its mapping, or null while the store is closed
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    // The first day, or -1 while the store is empty, and the number of days after it
+    private int mFirstDay = -1;
+    private int mDays;
+
+    // Number of days that fit in the current mapping
+    private int mCapacity;
+
+    /**
+     * Create a store kept in the given file. The file is opened when first used.
+     *
+     * @param file The totals file
+     */
+    public DailyTotalsStore(File file) {
+        mFile = file;
+    }
+
+    @Override
+    public void onBucketClosed(long bucketStartMillis, int epochDay, int minuteOfDay,
+            int activityType, int confidence) {
+        try {
+            addMinutes(epochDay, activityType, 1);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Add minutes to the total of a day. Days before the first day in the store are
+     * ignored.
+     */
+    public synchronized void addMinutes(int epochDay, int activityType, int minutes)
+            throws IOException {
+        int offset = slotFor(epochDay, activityType);
+        if (offset >= 0) {
+            setSlot(offset, epochDay, activityType, mBuffer.getInt(offset) + minutes);
+        }
+    }
+
+    /**
+     * Replace the total of a day, for example to import totals kept elsewhere
+     */
+    public synchronized void setMinutes(int epochDay, int activityType, int minutes)
+            throws IOException {
+        int offset = slotFor(epochDay, activityType);
+        if (offset >= 0) {
+            setSlot(offset, epochDay, activityType, minutes);
+        }
+    }
+
+    /**
+     * Get the minutes of an activity on a day
+     */
+    public synchronized int getMinutes(int epochDay, int activityType) throws IOException {
+        open();
+        if (mFirstDay < 0 || epochDay < mFirstDay || epochDay >= mFirstDay + mDays) {
+            return 0;
+        }
+        return mBuffer.getInt(offsetOf(epochDay, activityType));
+    }
+
+    /**
+     * Get the first day in the store
+     *
+     * @return The epoch day, or -1 if the store is empty
+     */
+    public synchronized int getFirstDay() throws IOException {
+        open();
+        return mFirstDay;
+    }
+
+    /**
+     * Get the last day in the store
+     *
+     * @return The epoch day, or -1 if the store is empty
+     */
+    public synchronized int getLastDay() throws IOException {
+        open();
+        return mFirstDay < 0 ? -1 : mFirstDay + mDays - 1;
+    }
+
+    /**
+     * Get the day with the most minutes of an activity
+     *
+     * @return The epoch day, or -1 if the activity has no minutes yet
+     */
+    public synchronized int getHighestDay(int activityType) throws IOException {
+        open();
+        return mBuffer.getInt(HIGHEST_OFFSET + 4 * activityType);
+    }
+
+    /**
+     * Get the most minutes of an activity on one day
+     */
+    public synchronized int getHighestMinutes(int activityType) throws IOException {
+        int day = getHighestDay(activityType);
+        return day < 0 ? 0 : getMinutes(day, activityType);
+    }
+
+    /**
+     * Write the whole history as CSV, one line per day with a column per activity type
+     */
+    public synchronized void exportTo(Writer writer) throws IOException {
+        open();
+        writer.write("date");
+        for (int type = 0; type < ActivityTypes.COUNT; type++) {
+            writer.write(',');
+            writer.write(ActivityTypes.getName(type));
+        }
+        writer.write('\n');
+
+        // An epoch day is the UTC date of its first millisecond
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (int i = 0; i < mDays; i++) {
+            writer.write(format.format(new Date((mFirstDay + i) * DayBoundary.DAY_MILLIS)));
+            int offset = HEADER_SIZE + i * DAY_SIZE;
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                writer.write(',');
+                writer.write(Integer.toString(mBuffer.getInt(offset + 4 * type)));
+            }
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Write the mapped totals to storage
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Close the file. The store opens it again when it is next used.
+     */
+    public synchronized void close() throws IOException {
+        if (mRandomAccessFile != null) {
+            flush();
+            mBuffer = null;
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            mFirstDay = -1;
+            mDays = 0;
+            mCapacity = 0;
+        }
+    }
+
+    private int offsetOf(int epochDay, int activityType) {
+        return HEADER_SIZE + (epochDay - mFirstDay) * DAY_SIZE + 4 * activityType;
+    }
+
+    /**
+     * Find the slot of a day, adding days to the store to reach it
+     *
+     * @return The offset of the slot, or -1 if the day is before the first day
+     */
+    private int slotFor(int epochDay, int activityType) throws IOException {
+        open();
+        if (activityType < 0 || activityType >= ActivityTypes.COUNT || epochDay < 0) {
+            return -1;
+        }
+        if (mFirstDay < 0) {
+            mFirstDay = epochDay;
+            mBuffer.putInt(FIRST_DAY_OFFSET, mFirstDay);
+        } else if (epochDay < mFirstDay) {
+            return -1;
+        }
+
+        int days = epochDay - mFirstDay + 1;
+        if (days > mDays) {
+            if (days > mCapacity) {
+                map(days + GROWTH_DAYS);
+            }
+
+            // Days with no minutes yet start at 0
+            for (int offset = HEADER_SIZE + mDays * DAY_SIZE;
+                    offset < HEADER_SIZE + days * DAY_SIZE; offset += 4) {
+                mBuffer.putInt(offset, 0);
+            }
+            mDays = days;
+            mBuffer.putInt(DAYS_OFFSET, mDays);
+        }
+        return offsetOf(epochDay, activityType);
+    }
+
+    /**
+     * Store a total and keep the highest day of its type up to date
+     */
+    private void setSlot(int offset, int epochDay, int activityType, int minutes) {
+        int previous = mBuffer.getInt(offset);
+        mBuffer.putInt(offset, minutes);
+
+        int highestDay = mBuffer.getInt(HIGHEST_OFFSET + 4 * activityType);
+        if (highestDay == epochDay) {
+
+            // The highest day went down, so another day may be higher now
+            if (minutes < previous) {
+                findHighestDay(activityType);
+            }
+        } else if (minutes > 0 && (highestDay < 0
+                || minutes >= mBuffer.getInt(offsetOf(highestDay, activityType)))) {
+            mBuffer.putInt(HIGHEST_OFFSET + 4 * activityType, epochDay);
+        }
+    }
+
+    private void findHighestDay(int activityType) {
+        int highestDay = -1;
+        int highest = 0;
+        for (int i = 0; i < mDays; i++) {
+            int minutes = mBuffer.getInt(HEADER_SIZE + i * DAY_SIZE + 4 * activityType);
+            if (minutes > 0 && minutes >= highest) {
+                highest = minutes;
+                highestDay = mFirstDay + i;
+            }
+        }
+        mBuffer.putInt(HIGHEST_OFFSET + 4 * activityType, highestDay);
+    }
+
+    /**
+     * Open and map the file, creating it if needed
+     */
+    private void open() throws IOException {
+        if (mRandomAccessFile != null) {
+            return;
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long length = mRandomAccessFile.length();
+        int days = length < HEADER_SIZE ? 0 : (int) ((length - HEADER_SIZE) / DAY_SIZE);
+        map(Math.max(days, GROWTH_DAYS));
+
+        if (length < HEADER_SIZE || mBuffer.getInt(0) != FILE_MAGIC
+                || mBuffer.getInt(TYPES_OFFSET) != ActivityTypes.COUNT) {
+
+            // A new or unreadable file starts out empty
+            mBuffer.putInt(0, FILE_MAGIC);
+            mBuffer.putInt(TYPES_OFFSET, ActivityTypes.COUNT);
+            mBuffer.putInt(FIRST_DAY_OFFSET, -1);
+            mBuffer.putInt(DAYS_OFFSET, 0);
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                mBuffer.putInt(HIGHEST_OFFSET + 4 * type, -1);
+            }
+            mFirstDay = -1;
+            mDays = 0;
+        } else {
+            mFirstDay = mBuffer.getInt(FIRST_DAY_OFFSET);
+            mDays = Math.min(mBuffer.getInt(DAYS_OFFSET), days);
+        }
+    }
+
+    /**
+     * Map enough of the file to hold the given number of days
+     */
+    private void map(int capacity) throws IOException {
+        FileChannel channel = mRandomAccessFile.getChannel();
+        mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * DAY_SIZE);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        mCapacity = capacity;
+    }
+}
@@ -0,0 +1,401 @@
+package com.janacare.walkmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The minutes of every day kept as bitmaps, one per day and activity type.
+ * <p>
+ * A day has 1440 minutes, so its bitmap takes 180 bytes. The file starts with a 16 byte
+ * header (magic, record size, record count), followed by one record per day and activity
+ * type seen: the epoch day, the activity type and the bitmap. Records are appended in day
+ * order, so a day is found with a binary search. Minute 0 is the most significant bit of
+ * the first byte, so the bitmap reads as big-endian words with the earliest minute first.
+ * <p>
+ * A day total is a popcount over 23 words, and "which minutes" is a leading-zero scan.
+ * A year of walking takes about 68 KB.
+ */
+public class DayBitmapStore implements BucketListener {
+
+    // Size of one bitmap in bytes
+    public static final int BITMAP_SIZE = DayBoundary.MINUTES_PER_DAY / 8;
+
+    // Number of longs that hold a bitmap when it is read into memory
+    public static final int BITMAP_WORDS = (DayBoundary.MINUTES_PER_DAY + 63) / 64;
+
+    // Size of one record in bytes
+    public static final int RECORD_SIZE = 8 + BITMAP_SIZE;
+
+    // Size of the file header in bytes
+    private static final int HEADER_SIZE = 16;
+
+    // Marks the start of the file ("WKD1")
+    private static final int FILE_MAGIC = 0x574B4431;
+
+    // Offsets in the header and in a record
+    private static final int COUNT_OFFSET = 8;
+    private static final int TYPE_OFFSET = 4;
+    private static final int BITMAP_OFFSET = 8;
+
+    // Number of whole longs in a bitmap, after which the last 32 minutes are an int
+    private static final int FULL_WORDS = BITMAP_SIZE / 8;
+
+    // The mapping grows by this many records at a time
+    private static final int GROWTH_RECORDS = 64;
+
+    // Store the bitmap file handle
+    private final File mFile;
+
+    // Open file and its mapping, or null while the store is closed
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    // Number of records in the store, and number that fit in the current mapping
+    private int mCount;
+    private int mCapacity;
+
+    // Record offsets of the last day written, by activity type, or 0 if not created yet
+    private int mLastDay = Integer.MIN_VALUE;
+    private final int[] mLastDayOffsets = new int[ActivityTypes.COUNT];
+
+    /**
+     * Create a store kept in the given file. The file is opened when first used.
+     *
+     * @param file The bitmap file
+     */
+    public DayBitmapStore(File file) {
+        mFile = file;
+    }
+
+    @Override
+    public void onBucketClosed(long bucketStartMillis, int epochDay, int minuteOfDay,
+            int activityType, int confidence) {
+        try {
+            set(epochDay, minuteOfDay, activityType);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Mark a minute as spent in an activity. A day older than the last day in the store
+     * can only be updated if it already has a bitmap for the activity.
+     */
+    public synchronized void set(int epochDay, int minuteOfDay, int activityType)
+            throws IOException {
+        if (activityType < 0 || activityType >= ActivityTypes.COUNT
+                || minuteOfDay < 0 || minuteOfDay >= DayBoundary.MINUTES_PER_DAY) {
+            return;
+        }
+        open();
+
+        int offset;
+        if (epochDay == mLastDay && mLastDayOffsets[activityType] != 0) {
+            offset = mLastDayOffsets[activityType];
+        } else {
+            offset = find(epochDay, activityType);
+            if (offset < 0) {
+                offset = create(epochDay, activityType);
+                if (offset < 0) {
+                    return;
+                }
+            }
+        }
+
+        int index = offset + BITMAP_OFFSET + (minuteOfDay >> 3);
+        mBuffer.put(index, (byte) (mBuffer.get(index) | (0x80 >>> (minuteOfDay & 7))));
+    }
+
+    /**
+     * Check whether a minute was spent in an activity
+     */
+    public synchronized boolean isSet(int epochDay, int minuteOfDay, int activityType)
+            throws IOException {
+        open();
+        int offset = find(epochDay, activityType);
+        if (offset < 0 || minuteOfDay < 0 || minuteOfDay >= DayBoundary.MINUTES_PER_DAY) {
+            return false;
+        }
+        int index = offset + BITMAP_OFFSET + (minuteOfDay >> 3);
+        return (mBuffer.get(index) & (0x80 >>> (minuteOfDay & 7))) != 0;
+    }
+
+    /**
+     * Get the minutes of an activity in one day
+     */
+    public synchronized int getDayMinutes(int epochDay, int activityType) throws IOException {
+        return countMinutes(epochDay, activityType, 0, DayBoundary.MINUTES_PER_DAY);
+    }
+
+    /**
+     * Count the minutes of an activity in part of a day
+     *
+     * @param fromMinute The first minute of the range
+     * @param toMinute The minute after the range
+     */
+    public synchronized int countMinutes(int epochDay, int activityType, int fromMinute,
+            int toMinute) throws IOException {
+        open();
+        fromMinute = Math.max(fromMinute, 0);
+        toMinute = Math.min(toMinute, DayBoundary.MINUTES_PER_DAY);
+        int offset = find(epochDay, activityType);
+        if (offset < 0 || fromMinute >= toMinute) {
+            return 0;
+        }
+
+        int bitmap = offset + BITMAP_OFFSET;
+        int first = fromMinute >> 6;
+        int last = (toMinute - 1) >> 6;
+        int count = 0;
+        for (int word = first; word <= last; word++) {
+            long bits = getWord(bitmap, word);
+            if (word == first) {
+                bits &= -1L >>> (fromMinute & 63);
+            }
+            if (word == last) {
+                bits &= -1L << (63 - ((toMinute - 1) & 63));
+            }
+            count += Long.bitCount(bits);
+        }
+        return count;
+    }
+
+    /**
+     * Add up the minutes of an activity over a range of days
+     *
+     * @param firstDay The first epoch day of the range
+     * @param lastDay The last epoch day of the range, included
+     */
+    public synchronized int sumDays(int firstDay, int lastDay, int activityType)
+            throws IOException {
+        open();
+        int total = 0;
+        for (int i = lowerBound(firstDay); i < mCount; i++) {
+            int offset = HEADER_SIZE + i * RECORD_SIZE;
+            if (mBuffer.getInt(offset) > lastDay) {
+                break;
+            }
+            if (mBuffer.get(offset + TYPE_OFFSET) == activityType) {
+                for (int word = 0; word < BITMAP_WORDS; word++) {
+                    total += Long.bitCount(getWord(offset + BITMAP_OFFSET, word));
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Find the next minute spent in an activity
+     *
+     * @param fromMinute The first minute to look at
+     * @return The minute, or -1 if there is none later in the day
+     */
+    public synchronized int nextMinute(int epochDay, int activityType, int fromMinute)
+            throws IOException {
+        open();
+        int offset = find(epochDay, activityType);
+        if (offset < 0 || fromMinute >= DayBoundary.MINUTES_PER_DAY) {
+            return -1;
+        }
+        fromMinute = Math.max(fromMinute, 0);
+
+        int bitmap = offset + BITMAP_OFFSET;
+        int word = fromMinute >> 6;
+        long bits = getWord(bitmap, word) & (-1L >>> (fromMinute & 63));
+        while (bits == 0) {
+            if (++word == BITMAP_WORDS) {
+                return -1;
+            }
+            bits = getWord(bitmap, word);
+        }
+        return (word << 6) + Long.numberOfLeadingZeros(bits);
+    }
+
+    /**
+     * Read the bitmap of a day into memory, for combining days or activities word by word
+     *
+     * @param words Receives BITMAP_WORDS words, minute 0 in the top bit of the first
+     * @return false if the day has no bitmap for the activity, and words are all zero
+     */
+    public synchronized boolean readDay(int epochDay, int activityType, long[] words)
+            throws IOException {
+        open();
+        int offset = find(epochDay, activityType);
+        for (int word = 0; word < BITMAP_WORDS; word++) {
+            words[word] = offset < 0 ? 0 : getWord(offset + BITMAP_OFFSET, word);
+        }
+        return offset >= 0;
+    }
+
+    /**
+     * Get the first day that has a bitmap
+     *
+     * @return The epoch day, or -1 if the store is empty
+     */
+    public synchronized int getFirstDay() throws IOException {
+        open();
+        return mCount == 0 ? -1 : mBuffer.getInt(HEADER_SIZE);
+    }
+
+    /**
+     * Get the last day that has a bitmap
+     *
+     * @return The epoch day, or -1 if the store is empty
+     */
+    public synchronized int getLastDay() throws IOException {
+        open();
+        return mCount == 0 ? -1 : mBuffer.getInt(HEADER_SIZE + (mCount - 1) * RECORD_SIZE);
+    }
+
+    /**
+     * Get the number of bitmaps in the store
+     */
+    public synchronized int size() throws IOException {
+        open();
+        return mCount;
+    }
+
+    /**
+     * Write the mapped bitmaps to storage
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Close the file. The store opens it again when it is next used.
+     */
+    public synchronized void close() throws IOException {
+        if (mRandomAccessFile != null) {
+            flush();
+            mBuffer = null;
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            mCount = 0;
+            mCapacity = 0;
+            mLastDay = Integer.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Read one word of a bitmap. The last word only has 32 minutes, in its top half.
+     */
+    private long getWord(int bitmap, int word) {
+        if (word < FULL_WORDS) {
+            return mBuffer.getLong(bitmap + 8 * word);
+        }
+        return (long) mBuffer.getInt(bitmap + 8 * word) << 32;
+    }
+
+    /**
+     * Find the record of a day and activity
+     *
+     * @return The offset of the record, or -1 if there is none
+     */
+    private int find(int epochDay, int activityType) {
+        for (int i = lowerBound(epochDay); i < mCount; i++) {
+            int offset = HEADER_SIZE + i * RECORD_SIZE;
+            if (mBuffer.getInt(offset) != epochDay) {
+                break;
+            }
+            if (mBuffer.get(offset + TYPE_OFFSET) == activityType) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first record of a day or a later day
+     */
+    private int lowerBound(int epochDay) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mBuffer.getInt(HEADER_SIZE + mid * RECORD_SIZE) < epochDay) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Append an empty record for a day and activity
+     *
+     * @return The offset of the record, or -1 if the day is older than the last record
+     */
+    private int create(int epochDay, int activityType) throws IOException {
+        if (mCount > 0 && mBuffer.getInt(HEADER_SIZE + (mCount - 1) * RECORD_SIZE) > epochDay) {
+            return -1;
+        }
+        if (mCount == mCapacity) {
+            map(mCapacity + GROWTH_RECORDS);
+        }
+
+        int offset = HEADER_SIZE + mCount * RECORD_SIZE;
+        mBuffer.putInt(offset, epochDay);
+        mBuffer.put(offset + TYPE_OFFSET, (byte) activityType);
+        for (int i = offset + BITMAP_OFFSET; i < offset + RECORD_SIZE; i++) {
+            mBuffer.put(i, (byte) 0);
+        }
+
+        // Publish the record by updating the count last
+        mCount++;
+        mBuffer.putLong(COUNT_OFFSET, mCount);
+
+        if (epochDay != mLastDay) {
+            mLastDay = epochDay;
+            for (int i = 0; i < mLastDayOffsets.length; i++) {
+                mLastDayOffsets[i] = 0;
+            }
+        }
+        mLastDayOffsets[activityType] = offset;
+        return offset;
+    }
+
+    /**
+     * Open and map the file, creating it if needed
+     */
+    private void open() throws IOException {
+        if (mRandomAccessFile != null) {
+            return;
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long length = mRandomAccessFile.length();
+        int records = length < HEADER_SIZE ? 0 : (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+        map(Math.max(records, GROWTH_RECORDS));
+
+        if (length < HEADER_SIZE || mBuffer.getInt(0) != FILE_MAGIC
+                || mBuffer.getInt(4) != RECORD_SIZE) {
+
+            // A new or unreadable file starts out empty
+            mBuffer.putInt(0, FILE_MAGIC);
+            mBuffer.putInt(4, RECORD_SIZE);
+            mBuffer.putLong(COUNT_OFFSET, 0);
+            mCount = 0;
+        } else {
+            mCount = (int) Math.min(mBuffer.getLong(COUNT_OFFSET), records);
+        }
+    }
+
+    /**
+     * Map enough of the file to hold the given number of records
+     */
+    private void map(int capacity) throws IOException {
+        FileChannel channel = mRandomAccessFile.getChannel();
+        mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        mCapacity = capacity;
+    }
+}
@@ -0,0 +1,159 @@
+package com.janacare.walkmeter;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Finds the local day of a timestamp.
+ * <p>
+ * The start of the last day looked up and the start of the day after it are cached, so a
+ * timestamp in the same day is placed with two long comparisons. The calendar is only used
+ * when a timestamp falls outside that day, which happens once a day for a live stream of
+ * detections, or when the time zone changes.
+ * <p>
+ * Days are numbered as local epoch days, counted from 1970-01-01 in the time zone, so
+ * they keep increasing across years, unlike the day of the year.
+ */
+public class DayBoundary {
+
+    // Milliseconds in a day without a daylight saving change
+    public static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // Milliseconds in a minute, and minutes in a day
+    public static final long MINUTE_MILLIS = 60 * 1000L;
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    // The time zone the days are local to
+    private TimeZone mTimeZone;
+
+    // Computes day starts when the cached day doesn't match
+    private Calendar mCalendar;
+
+    // The cached day: its start, the start of the next day, and its local epoch day
+    private long mDayStart = Long.MAX_VALUE;
+    private long mNextDayStart = Long.MIN_VALUE;
+    private int mEpochDay;
+
+    /**
+     * Create days local to the default time zone
+     */
+    public DayBoundary() {
+        this(TimeZone.getDefault());
+    }
+
+    /**
+     * Create days local to the given time zone
+     */
+    public DayBoundary(TimeZone timeZone) {
+        mTimeZone = timeZone;
+        mCalendar = Calendar.getInstance(timeZone);
+    }
+
+    public TimeZone getTimeZone() {
+        return mTimeZone;
+    }
+
+    /**
+     * Switch to another time zone, for example after the device changed zones. Nothing is
+     * recomputed if the zone has the same ID and rules as the current one.
+     *
+     * @return true if the zone was different and the cached day was dropped
+     */
+    public boolean setTimeZone(TimeZone timeZone) {
+        if (timeZone.getID().equals(mTimeZone.getID()) && timeZone.hasSameRules(mTimeZone)) {
+            return false;
+        }
+        mTimeZone = timeZone;
+        mCalendar = Calendar.getInstance(timeZone);
+        mDayStart = Long.MAX_VALUE;
+        mNextDayStart = Long.MIN_VALUE;
+        return true;
+    }
+
+    /**
+     * Get the local midnight that starts the day of a timestamp
+     */
+    public long getStartOfDay(long timestampMillis) {
+        moveTo(timestampMillis);
+        return mDayStart;
+    }
+
+    /**
+     * Get the local midnight that ends the day of a timestamp
+     */
+    public long getStartOfNextDay(long timestampMillis) {
+        moveTo(timestampMillis);
+        return mNextDayStart;
+    }
+
+    /**
+     * Get the local epoch day of a timestamp
+     */
+    public int getEpochDay(long timestampMillis) {
+        moveTo(timestampMillis);
+        return mEpochDay;
+    }
+
+    /**
+     * Get the local clock minute of a timestamp, 0 to 1439. In the hour repeated when
+     * daylight saving time ends, two instants share a minute.
+     */
+    public int getMinuteOfDay(long timestampMillis) {
+        long localMillis = timestampMillis + mTimeZone.getOffset(timestampMillis);
+        localMillis %= DAY_MILLIS;
+        if (localMillis < 0) {
+            localMillis += DAY_MILLIS;
+        }
+        return (int) (localMillis / MINUTE_MILLIS);
+    }
+
+    /**
+     * Check whether two timestamps fall in the same local day
+     */
+    public boolean isSameDay(long a, long b) {
+        moveTo(a);
+        return b >= mDayStart && b < mNextDayStart;
+    }
+
+    /**
+     * Count the local midnights between two timestamps
+     *
+     * @return 0 for the same day, 1 if b is the day after a, negative if b is before a
+     */
+    public int daysBetween(long a, long b) {
+        if (isSameDay(a, b)) {
+            return 0;
+        }
+        int dayA = getEpochDay(a);
+        return getEpochDay(b) - dayA;
+    }
+
+    /**
+     * Make the day of a timestamp the cached day
+     */
+    private void moveTo(long timestampMillis) {
+        if (timestampMillis >= mDayStart && timestampMillis < mNextDayStart) {
+            return;
+        }
+
+        Calendar calendar = mCalendar;
+        calendar.setTimeInMillis(timestampMillis);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long dayStart = calendar.getTimeInMillis();
+
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        mNextDayStart = calendar.getTimeInMillis();
+        mDayStart = dayStart;
+
+        // Shift midnight to UTC to number the day, rounding down before 1970
+        long localMillis = dayStart + mTimeZone.getOffset(dayStart);
+        long epochDay = localMillis / DAY_MILLIS;
+        if (localMillis % DAY_MILLIS < 0) {
+            epochDay--;
+        }
+        mEpochDay = (int) epochDay;
+    }
+}
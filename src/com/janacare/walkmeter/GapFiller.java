@@ -0,0 +1,230 @@
+package com.janacare.walkmeter;
+
+import java.util.Arrays;
+
+/**
+ * Finds the detections missing from a stream, for example while the device dozed, and fills
+ * them in before the stream reaches the ActivityPipeline.
+ * <p>
+ * Detections are expected every DETECTION_INTERVAL_MILLISECONDS. When two detections are
+ * further apart than one and a half intervals, the detections that should have come in
+ * between are made up according to the policy, so the pipeline keeps counting the minutes
+ * instead of dropping its bucket. Gaps longer than the fill limit, such as a phone switched
+ * off overnight, are left alone. Every gap is counted, filled or not, to show how much data
+ * is lost.
+ * <p>
+ * A batch is filled in one pass into output arrays laid out like the arguments of
+ * ActivityPipeline.ingest(), which only grow when a batch needs more room than before.
+ */
+public class GapFiller {
+
+    // The detection before a gap lasts through it
+    public static final int CARRY_FORWARD = 0;
+
+    // The gap is filled with UNKNOWN, so its minutes are counted but not as any activity
+    public static final int UNKNOWN = 1;
+
+    // The first half of the gap takes the detection before it, the second half the one
+    // after it, with the confidence moving from one to the other
+    public static final int INTERPOLATE = 2;
+
+    // Default longest gap filled
+    public static final long DEFAULT_MAX_FILL_MILLIS = 30 * 60000;
+
+    // Time between two detections
+    private static final long INTERVAL_MILLIS = ActivityUtils.DETECTION_INTERVAL_MILLISECONDS;
+
+    // Detections further apart than this have a gap between them
+    private static final long GAP_MILLIS = INTERVAL_MILLIS * 3 / 2;
+
+    // How gaps are filled
+    private final int mPolicy;
+
+    // Gaps longer than this are not filled
+    private final long mMaxFillMillis;
+
+    // The last detection seen, or a time of -1 before the first one
+    private long mLastTime = -1;
+    private int mLastType;
+    private int mLastConfidence;
+
+    // The filled batch, ready for ActivityPipeline.ingest()
+    private long[] mOutTimes = new long[64];
+    private byte[] mOutTypes = new byte[64];
+    private byte[] mOutConfidences = new byte[64];
+
+    // Gaps found and filled, detections made up, and the time in gaps
+    private long mGaps;
+    private long mFilledGaps;
+    private long mFilledDetections;
+    private long mGapMillis;
+    private long mUnfilledMillis;
+    private long mLongestGapMillis;
+
+    /**
+     * Create a filler that fills gaps with UNKNOWN, so no minutes of an activity are made up
+     */
+    public GapFiller() {
+        this(UNKNOWN, DEFAULT_MAX_FILL_MILLIS);
+    }
+
+    /**
+     * @param policy CARRY_FORWARD, UNKNOWN or INTERPOLATE
+     * @param maxFillMillis Gaps longer than this are not filled
+     */
+    public GapFiller(int policy, long maxFillMillis) {
+        if (policy < CARRY_FORWARD || policy > INTERPOLATE || maxFillMillis < 0) {
+            throw new IllegalArgumentException("Invalid gap settings " + policy + ", "
+                    + maxFillMillis);
+        }
+        mPolicy = policy;
+        mMaxFillMillis = maxFillMillis;
+    }
+
+    /**
+     * Fill the gaps before and within a batch of detections. Detections must be in time
+     * order, within the batch and from one batch to the next.
+     *
+     * @param timestampMillis Wall clock times of the detections
+     * @param activityType The most probable activity of each detection
+     * @param confidence The confidence of each detection, 0 to 100
+     * @param n The number of detections to read from the arrays
+     * @return The number of detections in the output arrays, the batch and the ones made up
+     */
+    public synchronized int fill(long[] timestampMillis, byte[] activityType,
+            byte[] confidence, int n) {
+        int out = 0;
+        for (int i = 0; i < n; i++) {
+            long time = timestampMillis[i];
+            int type = activityType[i];
+            int conf = confidence[i];
+
+            if (mLastTime >= 0 && time - mLastTime > GAP_MILLIS) {
+                out = fillGap(out, time, type, conf);
+            }
+            out = output(out, time, type, conf);
+            if (time > mLastTime) {
+                mLastTime = time;
+                mLastType = type;
+                mLastConfidence = conf;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Get the times of the filled batch
+     */
+    public long[] getOutputTimestamps() {
+        return mOutTimes;
+    }
+
+    /**
+     * Get the activities of the filled batch
+     */
+    public byte[] getOutputTypes() {
+        return mOutTypes;
+    }
+
+    /**
+     * Get the confidences of the filled batch
+     */
+    public byte[] getOutputConfidences() {
+        return mOutConfidences;
+    }
+
+    /**
+     * Get the number of gaps found
+     */
+    public synchronized long getGapCount() {
+        return mGaps;
+    }
+
+    /**
+     * Get the number of gaps filled
+     */
+    public synchronized long getFilledGapCount() {
+        return mFilledGaps;
+    }
+
+    /**
+     * Get the number of detections made up
+     */
+    public synchronized long getFilledDetectionCount() {
+        return mFilledDetections;
+    }
+
+    /**
+     * Get the time between the detections on either side of every gap
+     */
+    public synchronized long getGapMillis() {
+        return mGapMillis;
+    }
+
+    /**
+     * Get the time in gaps too long to fill, which the pipeline doesn't count
+     */
+    public synchronized long getUnfilledMillis() {
+        return mUnfilledMillis;
+    }
+
+    /**
+     * Get the longest gap found
+     */
+    public synchronized long getLongestGapMillis() {
+        return mLongestGapMillis;
+    }
+
+    /**
+     * Make up the detections missing before a detection
+     */
+    private int fillGap(int out, long time, int type, int conf) {
+        long gap = time - mLastTime;
+        mGaps++;
+        mGapMillis += gap;
+        mLongestGapMillis = Math.max(mLongestGapMillis, gap);
+        if (gap > mMaxFillMillis) {
+            mUnfilledMillis += gap;
+            return out;
+        }
+
+        // The detections that should have come, one interval apart
+        int missing = (int) ((gap + INTERVAL_MILLIS / 2) / INTERVAL_MILLIS) - 1;
+        if (missing <= 0) {
+            return out;
+        }
+        mFilledGaps++;
+        mFilledDetections += missing;
+        long step = gap / (missing + 1);
+        for (int k = 1; k <= missing; k++) {
+            long filledTime = mLastTime + k * step;
+            switch (mPolicy) {
+                case UNKNOWN:
+                    out = output(out, filledTime, ActivityTypes.UNKNOWN, 0);
+                    break;
+                case INTERPOLATE:
+                    int filledType = 2 * k <= missing + 1 ? mLastType : type;
+                    int filledConfidence = mLastConfidence
+                            + (conf - mLastConfidence) * k / (missing + 1);
+                    out = output(out, filledTime, filledType, filledConfidence);
+                    break;
+                default:
+                    out = output(out, filledTime, mLastType, mLastConfidence);
+                    break;
+            }
+        }
+        return out;
+    }
+
+    private int output(int out, long time, int type, int conf) {
+        if (out == mOutTimes.length) {
+            mOutTimes = Arrays.copyOf(mOutTimes, out * 2);
+            mOutTypes = Arrays.copyOf(mOutTypes, out * 2);
+            mOutConfidences = Arrays.copyOf(mOutConfidences, out * 2);
+        }
+        mOutTimes[out] = time;
+        mOutTypes[out] = (byte) type;
+        mOutConfidences[out] = (byte) conf;
+        return out + 1;
+    }
+}
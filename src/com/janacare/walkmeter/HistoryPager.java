@@ -0,0 +1,91 @@
+package com.janacare.walkmeter;
+
+import java.io.IOException;
+
+/**
+ * Reads a MappedHistoryStore a page at a time. A page is an ActivitySegment that the
+ * caller reuses, so memory use depends only on the page size and never on the size of
+ * the history.
+ * <p>
+ * The pager has a position between two records. nextPage() reads forward from it and
+ * previousPage() reads backward, and both move the position past what they read.
+ */
+public class HistoryPager {
+
+    // The history being read
+    private final MappedHistoryStore mStore;
+
+    // Reused to read records in place
+    private final MappedHistoryStore.Cursor mCursor;
+
+    // Index of the record after the position
+    private int mPosition;
+
+    /**
+     * Create a pager positioned at the start of the history
+     */
+    public HistoryPager(MappedHistoryStore store) {
+        mStore = store;
+        mCursor = store.newCursor();
+    }
+
+    /**
+     * Move to just before a record
+     *
+     * @param index The index of the record
+     */
+    public void seekTo(int index) throws IOException {
+        mPosition = Math.max(0, Math.min(index, mStore.size()));
+    }
+
+    /**
+     * Move to just before the first record at or after a point in time
+     */
+    public void seekToTime(long timestampMillis) throws IOException {
+        mPosition = mStore.indexOf(timestampMillis);
+    }
+
+    /**
+     * Move so that the given number of records is left before the end of the history
+     */
+    public void seekFromEnd(int count) throws IOException {
+        mPosition = Math.max(0, mStore.size() - count);
+    }
+
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Read the records after the position, oldest first
+     *
+     * @param page Cleared, then filled with up to its capacity of records
+     * @return The number of records read, 0 at the end of the history
+     */
+    public int nextPage(ActivitySegment page) throws IOException {
+        page.clear();
+        int size = mStore.size();
+        while (mPosition < size && !page.isFull()) {
+            mCursor.moveTo(mPosition++);
+            page.add(mCursor.getTimestamp(), mCursor.getActivityType(), mCursor.getConfidence());
+        }
+        return page.size();
+    }
+
+    /**
+     * Read the records before the position, oldest first
+     *
+     * @param page Cleared, then filled with up to its capacity of records
+     * @return The number of records read, 0 at the start of the history
+     */
+    public int previousPage(ActivitySegment page) throws IOException {
+        page.clear();
+        int start = Math.max(0, mPosition - page.getCapacity());
+        for (int i = start; i < mPosition; i++) {
+            mCursor.moveTo(i);
+            page.add(mCursor.getTimestamp(), mCursor.getActivityType(), mCursor.getConfidence());
+        }
+        mPosition = start;
+        return page.size();
+    }
+}
@@ -0,0 +1,286 @@
+package com.janacare.walkmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The best periods by total, such as the ten best days on foot, kept as a bounded min-heap
+ * in a memory-mapped file.
+ * <p>
+ * The file has a 16 byte header (magic, capacity, size), followed by the heap entries: a
+ * key, such as an epoch day or an ISO week, and its total. The root is the lowest total on
+ * the board, so a period only has to beat the root to get on. Totals only grow, so an
+ * entry whose total changes moves down the heap. Each update costs O(log K), and the
+ * position of the last key updated is remembered, so the period that is growing right now
+ * is found without a search.
+ */
+public class LeaderboardStore {
+
+    // Size of the file header in bytes
+    private static final int HEADER_SIZE = 16;
+
+    // Size of one entry in bytes
+    private static final int ENTRY_SIZE = 8;
+
+    // Marks the start of the file ("WKL1")
+    private static final int FILE_MAGIC = 0x574B4C31;
+
+    // Offsets in the header
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int SIZE_OFFSET = 8;
+
+    // Store the leaderboard file handle
+    private final File mFile;
+
+    // Most entries on the board
+    private final int mCapacity;
+
+    // Open file and its mapping, or null while the board is closed
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    // Number of entries on the board
+    private int mSize;
+
+    // The key updated last and its position in the heap, or -1 if it isn't on the board
+    private int mLastKey = Integer.MIN_VALUE;
+    private int mLastPosition = -1;
+
+    /**
+     * Create a board kept in the given file. The file is opened when first used.
+     *
+     * @param file The leaderboard file
+     * @param capacity The most entries on the board
+     */
+    public LeaderboardStore(File file, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid leaderboard capacity " + capacity);
+        }
+        mFile = file;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Report the new total of a period. Totals are expected to grow; a lower total for a
+     * period already on the board is ignored.
+     *
+     * @param key The period, such as an epoch day
+     * @param total Its total so far
+     */
+    public synchronized void update(int key, int total) throws IOException {
+        open();
+        int position = key == mLastKey ? mLastPosition : indexOf(key);
+        mLastKey = key;
+
+        if (position >= 0) {
+            if (total > getTotal(position)) {
+                setEntry(position, key, total);
+                mLastPosition = siftDown(position);
+            }
+        } else if (mSize < mCapacity) {
+            setEntry(mSize, key, total);
+            mSize++;
+            mBuffer.putInt(SIZE_OFFSET, mSize);
+            mLastPosition = siftUp(mSize - 1);
+        } else if (total > getTotal(0)) {
+
+            // Take the place of the lowest entry
+            setEntry(0, key, total);
+            mLastPosition = siftDown(0);
+        } else {
+            mLastPosition = -1;
+        }
+    }
+
+    /**
+     * Get the number of entries on the board
+     */
+    public synchronized int size() throws IOException {
+        open();
+        return mSize;
+    }
+
+    /**
+     * Get the lowest total on a full board, which a period has to beat to get on it
+     *
+     * @return The lowest total, or 0 if the board has room
+     */
+    public synchronized int getThreshold() throws IOException {
+        open();
+        return mSize < mCapacity ? 0 : getTotal(0);
+    }
+
+    /**
+     * Read the board, best first
+     *
+     * @param keys Receives the periods, must hold the capacity
+     * @param totals Receives their totals, must hold the capacity
+     * @return The number of entries read
+     */
+    public synchronized int read(int[] keys, int[] totals) throws IOException {
+        open();
+        int count = mSize;
+        for (int i = 0; i < count; i++) {
+            keys[i] = getKey(i);
+            totals[i] = getTotal(i);
+        }
+
+        // Insertion sort, the board is small
+        for (int i = 1; i < count; i++) {
+            int key = keys[i];
+            int total = totals[i];
+            int j = i - 1;
+            while (j >= 0 && (totals[j] < total || (totals[j] == total && keys[j] > key))) {
+                keys[j + 1] = keys[j];
+                totals[j + 1] = totals[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            totals[j + 1] = total;
+        }
+        return count;
+    }
+
+    /**
+     * Remove every entry
+     */
+    public synchronized void clear() throws IOException {
+        open();
+        mSize = 0;
+        mBuffer.putInt(SIZE_OFFSET, 0);
+        mLastKey = Integer.MIN_VALUE;
+        mLastPosition = -1;
+    }
+
+    /**
+     * Write the mapped entries to storage
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Close the file. The board opens it again when it is next used.
+     */
+    public synchronized void close() throws IOException {
+        if (mRandomAccessFile != null) {
+            flush();
+            mBuffer = null;
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            mSize = 0;
+            mLastKey = Integer.MIN_VALUE;
+            mLastPosition = -1;
+        }
+    }
+
+    private int indexOf(int key) {
+        for (int i = 0; i < mSize; i++) {
+            if (getKey(i) == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move an entry up while it is lower than its parent
+     *
+     * @return The final position of the entry
+     */
+    private int siftUp(int position) {
+        int key = getKey(position);
+        int total = getTotal(position);
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!lower(total, key, getTotal(parent), getKey(parent))) {
+                break;
+            }
+            setEntry(position, getKey(parent), getTotal(parent));
+            position = parent;
+        }
+        setEntry(position, key, total);
+        return position;
+    }
+
+    /**
+     * Move an entry down while it is higher than its lowest child
+     *
+     * @return The final position of the entry
+     */
+    private int siftDown(int position) {
+        int key = getKey(position);
+        int total = getTotal(position);
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= mSize) {
+                break;
+            }
+            if (child + 1 < mSize && lower(getTotal(child + 1), getKey(child + 1),
+                    getTotal(child), getKey(child))) {
+                child++;
+            }
+            if (!lower(getTotal(child), getKey(child), total, key)) {
+                break;
+            }
+            setEntry(position, getKey(child), getTotal(child));
+            position = child;
+        }
+        setEntry(position, key, total);
+        return position;
+    }
+
+    /**
+     * Order entries by total, and an older period below a newer one with the same total
+     */
+    private static boolean lower(int total, int key, int otherTotal, int otherKey) {
+        return total < otherTotal || (total == otherTotal && key < otherKey);
+    }
+
+    private int getKey(int position) {
+        return mBuffer.getInt(HEADER_SIZE + position * ENTRY_SIZE);
+    }
+
+    private int getTotal(int position) {
+        return mBuffer.getInt(HEADER_SIZE + position * ENTRY_SIZE + 4);
+    }
+
+    private void setEntry(int position, int key, int total) {
+        mBuffer.putInt(HEADER_SIZE + position * ENTRY_SIZE, key);
+        mBuffer.putInt(HEADER_SIZE + position * ENTRY_SIZE + 4, total);
+    }
+
+    /**
+     * Open and map the file, creating it if needed
+     */
+    private void open() throws IOException {
+        if (mRandomAccessFile != null) {
+            return;
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long length = mRandomAccessFile.length();
+        FileChannel channel = mRandomAccessFile.getChannel();
+        mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) mCapacity * ENTRY_SIZE);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+
+        if (length < HEADER_SIZE || mBuffer.getInt(0) != FILE_MAGIC
+                || mBuffer.getInt(CAPACITY_OFFSET) != mCapacity) {
+
+            // A new or unreadable file starts out empty
+            mBuffer.putInt(0, FILE_MAGIC);
+            mBuffer.putInt(CAPACITY_OFFSET, mCapacity);
+            mBuffer.putInt(SIZE_OFFSET, 0);
+            mSize = 0;
+        } else {
+            mSize = Math.max(0, Math.min(mBuffer.getInt(SIZE_OFFSET), mCapacity));
+        }
+    }
+}
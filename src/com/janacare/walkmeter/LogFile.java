@@ -17,47 +17,62 @@
 package com.janacare.walkmeter;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
+import android.os.Environment;
 import android.text.Spanned;
 import android.text.SpannedString;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
+import java.util.TimeZone;
 
 
 
 /**
- * Utility class that handles writing, reading and cleaning up files where we
+ * Utility class that handles writing and reading the files where we
  * log the activities that where detected by the activity detection service.
  */
 public class LogFile {
 
+    // The external activity log is flushed after this many lines, or this much time
+    private static final int EXTERNAL_FLUSH_LINES = 16;
+    private static final long EXTERNAL_FLUSH_INTERVAL_MILLIS = 60000;
+
+    // The background flusher writes out the sinks this long after the first record that
+    // hasn't been flushed, even if no more records arrive
+    private static final long FLUSH_INTERVAL_MILLIS = EXTERNAL_FLUSH_INTERVAL_MILLIS;
+
+    // Number of recent activities kept in memory
+    private static final int RECENT_ACTIVITY_CAPACITY = 256;
+
+    // Number of history records read at a time
+    private static final int HISTORY_PAGE_SIZE = 256;
+
     // Store a context for handling files
     private final Context mContext;
 
-    // Store an object that can "print" to a file
-    private PrintWriter mActivityWriter;
+    // Random access history of the detected activities
+    private final MappedHistoryStore mHistoryStore;
 
-    // Store a File handle
-    private File mLogFile;
+    // Compact archive of the history, filled from the store when the sinks are flushed
+    private final BinaryActivityLog mActivityLog;
 
-    // Store the shared preferences repository handle
-    private SharedPreferences mPrefs;
+    // The most recent activities, kept in memory
+    private final RecentActivitySink mRecentActivities;
 
-    // Store the current file number and name
-    private int mFileNumber;
-    private String mFileName;
+    // Hands every detected activity to the history file and the in-memory ring
+    private final ActivityRecordWriter mRecordWriter = new ActivityRecordWriter();
+
+    // Time of the first record written since the last flush, or 0 if there is none. Guarded
+    // by mFlushLock, which also wakes the flusher thread.
+    private long mPendingSince;
+    private final Object mFlushLock = new Object();
+
+    // The thread that flushes the sinks in the background, started with the first record
+    private Thread mFlusherThread;
 
     // Store an sLogFileInstance of the log file
     private static LogFile sLogFileInstance = null;
@@ -72,45 +87,29 @@ public class LogFile {
         // Get the context from the caller
         mContext = context;
 
-        // Open the shared preferences repository
-        mPrefs = context.getSharedPreferences(ActivityUtils.SHARED_PREFERENCES,
-                Context.MODE_PRIVATE);
-
-        // If it doesn't contain a file number, set the file number to 1
-        if (!mPrefs.contains(ActivityUtils.KEY_LOG_FILE_NUMBER)) {
-            mFileNumber = 1;
-
-        // Otherwise, get the last-used file number and increment it.
-        } else {
-            int fileNum = mPrefs.getInt(ActivityUtils.KEY_LOG_FILE_NUMBER, 0);
-            mFileNumber = fileNum + 1;
-        }
-
-        // Get a repository editor sLogFileInstance
-        Editor editor = mPrefs.edit();
-
-        // Put the file number in the repository
-        editor.putInt(ActivityUtils.KEY_LOG_FILE_NUMBER, mFileNumber);
-
-        // Create a timestamp
-        String dateString = new SimpleDateFormat("yyyy_MM_dd", Locale.US).format(new Date());
-
-        // Create the file name by sprintf'ing its parts into the filename string.
-        mFileName = context.getString(
-                R.string.log_filename,
-                ActivityUtils.LOG_FILE_NAME_PREFIX,
-                dateString,
-                mFileNumber++,
-                ActivityUtils.LOG_FILE_NAME_SUFFIX);
-
-        // Save the filename
-        editor.putString(ActivityUtils.KEY_LOG_FILE_NAME, mFileName);
-        editor.commit();
-
-        // Commit the updates
+        // Open the activity history. Every record goes straight into the mapped file, so
+        // none are lost if the process is killed.
+        mHistoryStore = new MappedHistoryStore(
+                createLogFile(ActivityUtils.ACTIVITY_HISTORY_FILE_NAME));
+        mActivityLog = new BinaryActivityLog(createLogFile(ActivityUtils.ACTIVITY_LOG_FILE_NAME));
+        mRecentActivities = new RecentActivitySink(RECENT_ACTIVITY_CAPACITY);
+
+        // Register the sinks of the activity write path
+        mRecordWriter.addSink(mHistoryStore);
+        mRecordWriter.addSink(mRecentActivities);
+        addExternalSink();
+    }
 
-        // Create the log file
-        mLogFile = createLogFile(mFileName);
+    /**
+     * Register the human-readable activity log on external storage. The sink opens the
+     * file on its first write, and tries again on later writes while it can't.
+     */
+    private void addExternalSink() {
+        File root = new File(Environment.getExternalStorageDirectory(),
+                ActivityUtils.EXTERNAL_LOG_DIR_NAME);
+        mRecordWriter.addSink(new TextFileSink(
+                new File(root, ActivityUtils.EXTERNAL_LOG_FILE_NAME),
+                EXTERNAL_FLUSH_LINES, EXTERNAL_FLUSH_INTERVAL_MILLIS));
     }
 
     /**
@@ -129,99 +128,144 @@ public class LogFile {
     }
 
     /**
-     * Log a message to the log file
+     * Write the text log lines in the given time zone, for example after the device
+     * changed zones
      */
-    public void log(String message) {
-
-        // Start a print writer for the log file
-        initLogWriter();
-
-        // Print a log message
-        mActivityWriter.println(message);
-
-        // Flush buffers
-        mActivityWriter.flush();
+    public void setTimeZone(TimeZone timeZone) {
+        mRecordWriter.setTimeZone(timeZone);
     }
 
     /**
-     * Loads data from the log file.
+     * Log a detected activity to every activity sink
+     *
+     * @param timestampMillis Wall clock time of the detection
+     * @param activityType The detected activity type
+     * @param confidence The confidence of the detection, 0 to 100
      */
-    public List<Spanned> loadLogFile() throws IOException {
-
-        // Get a new List of spanned strings
-        List<Spanned> content = new ArrayList<Spanned>();
-
-        // If no log file exists yet, return the empty List
-        if (!mLogFile.exists()) {
-            return content;
+    public void logActivity(long timestampMillis, int activityType, int confidence) {
+        mRecordWriter.write(timestampMillis, activityType, confidence);
+
+        // Have the flusher write the record out in time
+        synchronized (mFlushLock) {
+            if (mPendingSince == 0) {
+                mPendingSince = System.currentTimeMillis();
+                startFlusherThread();
+                mFlushLock.notifyAll();
+            }
         }
+    }
 
-        // Create a new buffered file reader based on the log file
-        BufferedReader reader = new BufferedReader(new FileReader(mLogFile));
+    /**
+     * Get the random access history of the detected activities
+     */
+    public MappedHistoryStore getHistoryStore() {
+        return mHistoryStore;
+    }
 
-        // Get a String instance to hold input from the log file
-        String line;
+    /**
+     * Get the most recent detected activities
+     */
+    public RecentActivitySink getRecentActivities() {
+        return mRecentActivities;
+    }
 
-        /*
-         * Read until end-of-file from the log file, and store the input line as a
-         * spanned string in the List
-         */
-        while ((line = reader.readLine()) != null) {
-            content.add(new SpannedString(line));
+    /**
+     * Flush every activity sink
+     */
+    public void sync() {
+        synchronized (mFlushLock) {
+            mPendingSince = 0;
         }
-
-        // Close the file
-        reader.close();
-
-        // Return the data from the log file
-        return content;
+        mRecordWriter.flush();
+        archiveHistory();
     }
 
     /**
-     * Creates an object that writes human-readable lines of text to a file
+     * Copy the history records that fill a segment into the binary archive. Records left
+     * over stay in the store and are archived with a later flush.
      */
-    private void initLogWriter() {
-
-        // Catch IO exceptions
+    private void archiveHistory() {
         try {
-
-            // If the writer is still open, close it
-            if (mActivityWriter != null) {
-                mActivityWriter.close();
-            }
-
-            // Create a new writer for the log file
-            mActivityWriter = new PrintWriter(new FileWriter(mLogFile, true));
-
-        // If an IO exception occurs, print a stack trace
+            mActivityLog.archive(mHistoryStore);
         } catch (IOException e) {
-                e.printStackTrace();
+            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
         }
     }
 
     /**
-     * Delete log files
+     * Start the thread that flushes the sinks, if it isn't running yet. Called with
+     * mFlushLock held.
      */
-    public boolean removeLogFiles() {
-        // Start with the "all files removed" flag set to true
-        boolean removed = true;
+    private void startFlusherThread() {
+        if (mFlusherThread != null) {
+            return;
+        }
 
-        // Iterate through all the files in the app's file directory
-        for (File file : mContext.getFilesDir().listFiles()) {
+        mFlusherThread = new Thread("LogFileFlusher") {
+            @Override
+            public void run() {
+                flushPendingRecords();
+            }
+        };
+        mFlusherThread.setDaemon(true);
+        mFlusherThread.start();
+    }
 
-            // If unable to delete the file
-            if (!file.delete()) {
+    /**
+     * Flush the sinks FLUSH_INTERVAL_MILLIS after the first record written since the last
+     * flush, for as long as the process runs. The sinks' own line and time limits are only
+     * checked when a record arrives, so without this the last records of a walk could stay
+     * in a buffer until the next detection.
+     */
+    private void flushPendingRecords() {
+        while (true) {
+            synchronized (mFlushLock) {
+                try {
+                    if (mPendingSince == 0) {
+                        mFlushLock.wait();
+                        continue;
+                    }
+                    long wait = mPendingSince + FLUSH_INTERVAL_MILLIS
+                            - System.currentTimeMillis();
+                    if (wait > 0) {
+                        mFlushLock.wait(wait);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mPendingSince = 0;
+            }
+            mRecordWriter.flush();
+            archiveHistory();
+        }
+    }
 
-                // Log the file's name
-                Log.e(ActivityUtils.APPTAG, file.getAbsolutePath() + " : " + file.getName());
+    /**
+     * Loads the most recent part of the activity history as human-readable lines. Only
+     * the requested records are read, a page at a time.
+     *
+     * @param maxRecords The most records to load
+     */
+    public List<Spanned> loadActivityLog(int maxRecords) throws IOException {
 
-                // Note that not all files were removed
-                removed = false;
+        // Get a new List of spanned strings
+        List<Spanned> content = new ArrayList<Spanned>();
+
+        // Start reading maxRecords before the end of the history
+        HistoryPager pager = new HistoryPager(mHistoryStore);
+        pager.seekFromEnd(maxRecords);
+
+        // Decode the history records into lines of text
+        SimpleDateFormat format = ActivitySegment.newDateFormat();
+        ActivitySegment page = new ActivitySegment(HISTORY_PAGE_SIZE);
+        while (pager.nextPage(page) > 0) {
+            for (int i = 0; i < page.size(); i++) {
+                content.add(new SpannedString(ActivitySegment.formatLine(format,
+                        page.getTimestamp(i), page.getActivityType(i), page.getConfidence(i))));
             }
         }
-
-        // Return true if all files were removed, otherwise false
-        return removed;
+        return content;
     }
 
     /**
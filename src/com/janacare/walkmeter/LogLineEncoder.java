@@ -0,0 +1,204 @@
+package com.janacare.walkmeter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Builds activity log lines in a reusable character buffer, without allocating.
+ * <p>
+ * The line has the same layout as ActivitySegment.formatLine():
+ * {@code yyyy-MM-dd HH:mm:ss.SSSZ;;Log: timestamp: <type> type <name> confidence <n>}.
+ * The date and time fields are computed once per second and reused for every line in that
+ * second, so the common case only writes the milliseconds and the activity fields.
+ * The time zone is fixed until setTimeZone() is called, so that the owner decides when
+ * to look at the device's zone again.
+ */
+public class LogLineEncoder implements CharSequence {
+
+    // Longest line the encoder can produce
+    private static final int MAX_LINE_LENGTH = 128;
+
+    // Length of "yyyy-MM-dd HH:mm:ss"
+    private static final int SECONDS_LENGTH = 19;
+
+    // Length of "yyyy-MM-dd HH:mm:ss.SSS"
+    private static final int MILLIS_END = SECONDS_LENGTH + 4;
+
+    // Length of "yyyy-MM-dd HH:mm:ss.SSSZ"
+    private static final int TIMESTAMP_LENGTH = MILLIS_END + 5;
+
+    private static final char[] TYPE_PREFIX = ";;Log: timestamp: ".toCharArray();
+    private static final char[] NAME_PREFIX = " type ".toCharArray();
+    private static final char[] CONFIDENCE_PREFIX = " confidence ".toCharArray();
+
+    // Activity names, indexed by type
+    private static final char[][] NAMES = new char[ActivityTypes.COUNT][];
+    static {
+        for (int i = 0; i < ActivityTypes.COUNT; i++) {
+            NAMES[i] = ActivityTypes.getName(i).toCharArray();
+        }
+    }
+    private static final char[] UNKNOWN_NAME = ActivityTypes.getName(-1).toCharArray();
+
+    // The line being built, and its length
+    private final char[] mChars = new char[MAX_LINE_LENGTH];
+    private int mLength;
+
+    // Computes the date fields when the second changes
+    private final Calendar mCalendar;
+
+    // The second whose date fields are in mChars, or Long.MIN_VALUE if none
+    private long mCachedSecond = Long.MIN_VALUE;
+
+    /**
+     * Create an encoder for timestamps in the default time zone
+     */
+    public LogLineEncoder() {
+        this(TimeZone.getDefault());
+    }
+
+    /**
+     * Create an encoder for timestamps in the given time zone
+     */
+    public LogLineEncoder(TimeZone timeZone) {
+        mCalendar = Calendar.getInstance(timeZone);
+        mChars[4] = '-';
+        mChars[7] = '-';
+        mChars[10] = ' ';
+        mChars[13] = ':';
+        mChars[16] = ':';
+        mChars[SECONDS_LENGTH] = '.';
+    }
+
+    /**
+     * Switch to another time zone, for example after the device changed zones. Nothing is
+     * recomputed if the zone has the same ID and rules as the current one.
+     *
+     * @return true if the zone was different and the cached second was dropped
+     */
+    public boolean setTimeZone(TimeZone timeZone) {
+        TimeZone current = mCalendar.getTimeZone();
+        if (timeZone.getID().equals(current.getID()) && timeZone.hasSameRules(current)) {
+            return false;
+        }
+        mCalendar.setTimeZone(timeZone);
+        mCachedSecond = Long.MIN_VALUE;
+        return true;
+    }
+
+    /**
+     * Build the line for one detected activity, replacing the previous line
+     *
+     * @return This encoder, which holds the line until the next call
+     */
+    public LogLineEncoder encode(long timestampMillis, int activityType, int confidence) {
+        long second = timestampMillis / 1000;
+        int millis = (int) (timestampMillis % 1000);
+        if (millis < 0) {
+            second--;
+            millis += 1000;
+        }
+
+        if (second != mCachedSecond) {
+            encodeSecond(second);
+        }
+
+        char[] chars = mChars;
+        chars[SECONDS_LENGTH + 1] = (char) ('0' + millis / 100);
+        chars[SECONDS_LENGTH + 2] = (char) ('0' + millis / 10 % 10);
+        chars[SECONDS_LENGTH + 3] = (char) ('0' + millis % 10);
+
+        int length = TIMESTAMP_LENGTH;
+        length = put(TYPE_PREFIX, length);
+        length = putInt(activityType, length);
+        length = put(NAME_PREFIX, length);
+        length = put(activityType >= 0 && activityType < NAMES.length
+                ? NAMES[activityType] : UNKNOWN_NAME, length);
+        length = put(CONFIDENCE_PREFIX, length);
+        length = putInt(confidence, length);
+        mLength = length;
+        return this;
+    }
+
+    /**
+     * Write the current line, without a line separator
+     */
+    public void writeTo(Writer writer) throws IOException {
+        writer.write(mChars, 0, mLength);
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("No character " + index);
+        }
+        return mChars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mChars, 0, mLength);
+    }
+
+    /**
+     * Fill in the date, the time down to the second, and the zone offset
+     */
+    private void encodeSecond(long second) {
+        Calendar calendar = mCalendar;
+        calendar.setTimeInMillis(second * 1000);
+
+        char[] chars = mChars;
+        putDigits(calendar.get(Calendar.YEAR), 0, 4);
+        putDigits(calendar.get(Calendar.MONTH) + 1, 5, 2);
+        putDigits(calendar.get(Calendar.DAY_OF_MONTH), 8, 2);
+        putDigits(calendar.get(Calendar.HOUR_OF_DAY), 11, 2);
+        putDigits(calendar.get(Calendar.MINUTE), 14, 2);
+        putDigits(calendar.get(Calendar.SECOND), 17, 2);
+
+        int offsetMinutes = (calendar.get(Calendar.ZONE_OFFSET)
+                + calendar.get(Calendar.DST_OFFSET)) / 60000;
+        chars[MILLIS_END] = offsetMinutes < 0 ? '-' : '+';
+        offsetMinutes = Math.abs(offsetMinutes);
+        putDigits(offsetMinutes / 60 * 100 + offsetMinutes % 60, MILLIS_END + 1, 4);
+
+        mCachedSecond = second;
+    }
+
+    private void putDigits(int value, int offset, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            mChars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private int put(char[] text, int offset) {
+        System.arraycopy(text, 0, mChars, offset, text.length);
+        return offset + text.length;
+    }
+
+    private int putInt(int value, int offset) {
+        if (value < 0) {
+            mChars[offset++] = '-';
+            value = -value;
+        }
+
+        int digits = 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        putDigits(value, offset, digits);
+        return offset + digits;
+    }
+}
@@ -30,16 +30,15 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.content.LocalBroadcastManager;
-import android.text.Spanned;
 import android.util.Log;
 import android.view.View;
 import android.view.Window;
 import android.widget.Button;
 import android.widget.TextView;
-import java.io.IOException;
-import java.util.List;
+import java.lang.ref.WeakReference;
 public class MainActivity extends Activity {
 	private static final String TAG = MainActivity.class.getSimpleName();
 	
@@ -51,14 +50,16 @@ public class MainActivity extends Activity {
 	TextView headYesterday;
 	TextView headHighest;
 	TextView tvtodayAfter;
+	TextView showAverages;
 	
 	Button btnCount;
 	SharedPreferences vPref;
     
-	private static final int MAX_LOG_SIZE = 5000;
+    // Reads the minute totals saved by the detection service
+    private CounterStore mCounterStore;
 
-    // Instantiates a log file utility object, used to log status updates
-    private LogFile mLogFile;
+    // Loads the totals off the UI thread, or null while no load is running
+    private TotalsLoader mTotalsLoader;
     
     private REQUEST_TYPE mRequestType;
 
@@ -102,6 +103,7 @@ public class MainActivity extends Activity {
         headToday = (TextView)findViewById(R.id.tvStepsToday1);
         headYesterday = (TextView)findViewById(R.id.tvStepsYesterday2);
         headHighest = (TextView)findViewById(R.id.tvStepsHighest3);
+        showAverages = (TextView)findViewById(R.id.tvAverages);
         
         Typeface regular = Typeface.createFromAsset(getAssets(), "Roboto-Regular.ttf");
         Typeface thin = Typeface.createFromAsset(getAssets(), "Roboto-Thin.ttf");
@@ -116,19 +118,13 @@ public class MainActivity extends Activity {
         headToday.setTypeface(regular);
         headYesterday.setTypeface(regular);
         headHighest.setTypeface(regular);
+        showAverages.setTypeface(regular);
         btnCount.setTypeface(regular);
         
         
         
-        int i = vPref.getInt(Constants.KEY_STEPS_TODAY, 0);
-    	int j = vPref.getInt("steps_yesterday", 0);
-    	int k = vPref.getInt("minutes_highest", i);
-    	Log.d("step  in", Long.toString(i));
-    	Log.d("show steps", "showStepsToday: " + showStepsToday);
-    	
-    	showStepsToday.setText(Integer.toString(i));
-    	showStepsYesterday.setText(Integer.toString(j));
-    	showStepsHighest.setText(Integer.toString(k));
+        // The totals are loaded in onResume()
+        mCounterStore = new CounterStore(this);
       
     	
         
@@ -142,9 +138,6 @@ public class MainActivity extends Activity {
         mDetectionRequester = new DetectionRequester(this);
         mDetectionRemover = new DetectionRemover(this);
 
-        // Create a new LogFile object
-        mLogFile = LogFile.getInstance(this);
-
         btnCount.setOnClickListener(new View.OnClickListener() {
 			
 			@Override
@@ -275,15 +268,8 @@ public class MainActivity extends Activity {
 	            updateListReceiver,
 	            mBroadcastFilter);
 	    
-	    int i = vPref.getInt(Constants.KEY_STEPS_TODAY, 0);
-		int j = vPref.getInt("steps_yesterday", 0);
-		int k = vPref.getInt("minutes_highest", i);
-		Log.d("step  in", Long.toString(i));
-		Log.d("show steps", "showStepsToday: " + showStepsToday);
-		
-		showStepsToday.setText(Integer.toString(i));
-		showStepsYesterday.setText(Integer.toString(j));
-		showStepsHighest.setText(Integer.toString(k));
+	    // Read the totals off the UI thread
+	    loadTotals();
 	    
 	    if(!vPref.getBoolean("btnFlag", false))
 	    {
@@ -293,8 +279,6 @@ public class MainActivity extends Activity {
 	    {
 	    	btnCount.setText("Stop Counting");
 	    }
-	    // Load updated activity history
-	    updateActivityHistory();
 	}
 
 	
@@ -310,6 +294,76 @@ public class MainActivity extends Activity {
 
  
     
+    /**
+     * Start loading the totals in the background, unless a load is already running
+     */
+    private void loadTotals() {
+        if (mTotalsLoader == null) {
+            mTotalsLoader = new TotalsLoader(this);
+            mTotalsLoader.execute();
+        }
+    }
+
+    /**
+     * Reads the saved totals and the statistics in the background, then shows them. The
+     * statistics open several mapped files the first time, which is too slow for the UI
+     * thread. The loader only holds the Activity weakly, so a load still running after the
+     * Activity is gone doesn't keep it in memory.
+     */
+    private static class TotalsLoader extends AsyncTask<Void, Void, Void> {
+
+        // The Activity that shows the totals, and what the load needs from it
+        private final WeakReference<MainActivity> mActivity;
+        private final Context mContext;
+        private final CounterStore mCounterStore;
+
+        // The totals read in the background
+        private int mToday;
+        private int mYesterday;
+        private int mHighest;
+        private int mWeekAverage;
+        private int mMonthAverage;
+        private int mYearAverage;
+
+        TotalsLoader(MainActivity activity) {
+            mActivity = new WeakReference<MainActivity>(activity);
+            mContext = activity.getApplicationContext();
+            mCounterStore = activity.mCounterStore;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            BucketState totals = mCounterStore.load();
+            ActivityStatistics statistics = ActivityStatistics.getInstance(mContext);
+            statistics.importTotals(totals);
+
+            mToday = totals.minutesToday;
+            mYesterday = totals.minutesYesterday;
+            mHighest = statistics.getHighestMinutesOnFoot();
+
+            RollingTotals rolling = statistics.getRollingTotals();
+            mWeekAverage = Math.round(rolling.getAverage(RollingTotals.WEEK));
+            mMonthAverage = Math.round(rolling.getAverage(RollingTotals.MONTH));
+            mYearAverage = Math.round(rolling.getAverage(RollingTotals.YEAR));
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            MainActivity activity = mActivity.get();
+            if (activity == null || activity.isFinishing()) {
+                return;
+            }
+            activity.mTotalsLoader = null;
+
+            activity.showStepsToday.setText(Integer.toString(mToday));
+            activity.showStepsYesterday.setText(Integer.toString(mYesterday));
+            activity.showStepsHighest.setText(Integer.toString(mHighest));
+            activity.showAverages.setText(activity.getString(R.string.averages,
+                    mWeekAverage, mMonthAverage, mYearAverage));
+        }
+    }
+
     /**
      * Verify that Google Play services is available before making a request.
      *
@@ -378,53 +432,9 @@ public class MainActivity extends Activity {
         // TODO: Update toggle button to "Start pedometer"
     }
 
-    /**
-     * Display the activity detection history stored in the
-     * log file
-     */
-    
-    private void updateActivityHistory() {
-        // Try to load data from the history file
-    	Log.d(TAG, "updateActivityHistory()");
-    	try {
-            // Load log file records into the List
-            List<Spanned> activityDetectionHistory =
-                    mLogFile.loadLogFile();
-
-            // Clear the adapter of existing data
-           // mStatusAdapter.clear();
-
-            // Add each element of the history to the adapter
-            for (Spanned activity : activityDetectionHistory) {
-             //   mStatusAdapter.add(activity);
-            }
-
-            // If the number of loaded records is greater than the max log size
-            //if (mStatusAdapter.getCount() > MAX_LOG_SIZE) 
-            {
-
-                // Delete the old log file
-                if (!mLogFile.removeLogFiles()) {
-
-                    // Log an error if unable to delete the log file
-                    Log.e(ActivityUtils.APPTAG, getString(R.string.log_file_deletion_error));
-                }
-            
-            }
-
-            // Trigger the adapter to update the display
-      //      mStatusAdapter.notifyDataSetChanged();
-
-        // If an error occurs while reading the history file
-        } catch (IOException e) {
-            Log.e(ActivityUtils.APPTAG, e.getMessage(), e);
-        }
-    }
-
     /**
      * Broadcast receiver that receives activity update intents
-     * It checks to see if the ListView contains items. If it
-     * doesn't, it pulls in history.
+     * It reloads the displayed totals.
      * This receiver is local only. It can't read broadcast Intents from other apps.
      */
     BroadcastReceiver updateListReceiver = new BroadcastReceiver() {
@@ -433,9 +443,9 @@ public class MainActivity extends Activity {
 
             /*
              * When an Intent is received from the update listener IntentService, update
-             * the displayed log.
+             * the displayed totals.
              */
-            updateActivityHistory();
+            loadTotals();
         }
     };
 }
\ No newline at end of file
@@ -0,0 +1,236 @@
+package com.janacare.walkmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Detection history kept in a memory-mapped file of fixed-size records.
+ * <p>
+ * The file starts with a 16 byte header (magic, record size, record count), followed by
+ * one RECORD_SIZE record per detection: the timestamp, the activity type and the
+ * confidence. Records are appended in time order, so a time range can be found with a
+ * binary search. Records are read in place through a Cursor, which allocates nothing per
+ * record, so scans over months of history run at memory speed.
+ */
+public class MappedHistoryStore implements ActivitySink {
+
+    // Size of one record in bytes
+    public static final int RECORD_SIZE = 12;
+
+    // Size of the file header in bytes
+    private static final int HEADER_SIZE = 16;
+
+    // Marks the start of the file ("WKH1")
+    private static final int FILE_MAGIC = 0x574B4831;
+
+    // Offsets in the header and in a record
+    private static final int COUNT_OFFSET = 8;
+    private static final int TYPE_OFFSET = 8;
+    private static final int CONFIDENCE_OFFSET = 9;
+
+    // The mapping grows by this many records at a time
+    private static final int GROWTH_RECORDS = 16384;
+
+    // Store the history file handle
+    private final File mFile;
+
+    // Open file and its mapping, or null while the store is closed
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    // Number of records in the store, and number that fit in the current mapping
+    private int mCount;
+    private int mCapacity;
+
+    /**
+     * Create a store kept in the given file. The file is opened when first used.
+     *
+     * @param file The history file
+     */
+    public MappedHistoryStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Append a detection to the history
+     */
+    public synchronized void append(long timestampMillis, int activityType, int confidence)
+            throws IOException {
+        open();
+        if (mCount == mCapacity) {
+            map(mCapacity + GROWTH_RECORDS);
+        }
+
+        int offset = HEADER_SIZE + mCount * RECORD_SIZE;
+        mBuffer.putLong(offset, timestampMillis);
+        mBuffer.put(offset + TYPE_OFFSET, (byte) activityType);
+        mBuffer.put(offset + CONFIDENCE_OFFSET, (byte) confidence);
+
+        // Publish the record by updating the count last
+        mCount++;
+        mBuffer.putLong(COUNT_OFFSET, mCount);
+    }
+
+    @Override
+    public boolean needsLine() {
+        return false;
+    }
+
+    @Override
+    public void write(long timestampMillis, int activityType, int confidence, LogLineEncoder line)
+            throws IOException {
+        append(timestampMillis, activityType, confidence);
+    }
+
+    /**
+     * Get the number of records in the history
+     */
+    public synchronized int size() throws IOException {
+        open();
+        return mCount;
+    }
+
+    /**
+     * Find the first record at or after a point in time
+     *
+     * @param timestampMillis The point in time
+     * @return The index of the record, or size() if every record is older
+     */
+    public synchronized int indexOf(long timestampMillis) throws IOException {
+        open();
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mBuffer.getLong(HEADER_SIZE + mid * RECORD_SIZE) < timestampMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Create a cursor for reading records. A cursor can be reused for any number of
+     * records, and stays valid while the store grows.
+     */
+    public Cursor newCursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public void flush() {
+        force();
+    }
+
+    /**
+     * Write the mapped records to storage
+     */
+    public synchronized void force() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Close the file. The store opens it again when it is next used.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mRandomAccessFile != null) {
+            force();
+            mBuffer = null;
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            mCount = 0;
+            mCapacity = 0;
+        }
+    }
+
+    /**
+     * Open and map the file, creating it if needed
+     */
+    private void open() throws IOException {
+        if (mRandomAccessFile != null) {
+            return;
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long length = mRandomAccessFile.length();
+        int records = length < HEADER_SIZE ? 0 : (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+        map(Math.max(records, GROWTH_RECORDS));
+
+        if (length < HEADER_SIZE || mBuffer.getInt(0) != FILE_MAGIC) {
+
+            // A new or unreadable file starts out empty
+            mBuffer.putInt(0, FILE_MAGIC);
+            mBuffer.putInt(4, RECORD_SIZE);
+            mBuffer.putLong(COUNT_OFFSET, 0);
+            mCount = 0;
+        } else {
+            mCount = (int) Math.min(mBuffer.getLong(COUNT_OFFSET), records);
+        }
+    }
+
+    /**
+     * Map enough of the file to hold the given number of records
+     */
+    private void map(int capacity) throws IOException {
+        FileChannel channel = mRandomAccessFile.getChannel();
+        mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        mCapacity = capacity;
+    }
+
+    /**
+     * A flyweight view of one record. Move it to a record with moveTo(), then read the
+     * fields, which are decoded straight from the mapped file.
+     */
+    public class Cursor {
+
+        // The mapping and record count seen by this cursor. A newer mapping covers the
+        // same file, so records stay readable through an older one.
+        private MappedByteBuffer mView;
+        private int mViewCount;
+
+        // Offset of the current record in the mapping
+        private int mOffset = -1;
+
+        /**
+         * Move to a record
+         *
+         * @param index The index of the record, from 0 to size() - 1
+         */
+        public void moveTo(int index) throws IOException {
+            if (index < 0 || index >= mViewCount) {
+                synchronized (MappedHistoryStore.this) {
+                    open();
+                    mView = mBuffer;
+                    mViewCount = mCount;
+                }
+                if (index < 0 || index >= mViewCount) {
+                    throw new IndexOutOfBoundsException("No history record " + index);
+                }
+            }
+            mOffset = HEADER_SIZE + index * RECORD_SIZE;
+        }
+
+        public long getTimestamp() {
+            return mView.getLong(mOffset);
+        }
+
+        public int getActivityType() {
+            return mView.get(mOffset + TYPE_OFFSET);
+        }
+
+        public int getConfidence() {
+            return mView.get(mOffset + CONFIDENCE_OFFSET);
+        }
+    }
+}
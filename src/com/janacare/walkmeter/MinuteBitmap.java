@@ -0,0 +1,626 @@
+package com.janacare.walkmeter;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of minutes, in the style of a Roaring bitmap.
+ * <p>
+ * A minute number is split into a 16 bit key and a 16 bit low part. The minutes that share
+ * a key, about 45 days, go into one container. A container with up to ARRAY_MAX_SIZE
+ * minutes is a sorted array of the low parts; a fuller container is a 65536 bit bitmap.
+ * Sparse stretches cost two bytes per minute and dense ones one bit per minute. An empty
+ * stretch costs nothing.
+ * <p>
+ * and(), or() and andNot() work container by container, and skip keys that only one side
+ * has where the result allows it.
+ */
+public class MinuteBitmap {
+
+    // Most values in an array container, beyond which a bitmap is smaller
+    private static final int ARRAY_MAX_SIZE = 4096;
+
+    // Number of longs in a bitmap container
+    private static final int BITMAP_WORDS = 1024;
+
+    // Keys of the containers, in increasing order, and the containers
+    private char[] mKeys;
+    private Container[] mContainers;
+    private int mSize;
+
+    /**
+     * Create an empty set
+     */
+    public MinuteBitmap() {
+        mKeys = new char[4];
+        mContainers = new Container[4];
+    }
+
+    /**
+     * Create a set of consecutive minutes
+     *
+     * @param start The first minute
+     * @param end The minute after the last
+     */
+    public static MinuteBitmap range(int start, int end) {
+        MinuteBitmap bitmap = new MinuteBitmap();
+        bitmap.addRange(start, end);
+        return bitmap;
+    }
+
+    /**
+     * Add a minute to the set
+     *
+     * @param minute A minute number, from 0
+     */
+    public void add(int minute) {
+        if (minute < 0) {
+            return;
+        }
+        getOrCreate((char) (minute >>> 16)).add((char) minute);
+    }
+
+    /**
+     * Add consecutive minutes to the set
+     *
+     * @param start The first minute
+     * @param end The minute after the last
+     */
+    public void addRange(int start, int end) {
+        start = Math.max(start, 0);
+        while (start < end) {
+            int key = start >>> 16;
+            int chunkEnd = Math.min(end, (key + 1) << 16);
+            if (chunkEnd <= 0) {
+
+                // The last key, whose end overflows an int
+                chunkEnd = end;
+            }
+            getOrCreate((char) key).addRange(start & 0xFFFF, chunkEnd - (key << 16));
+            start = chunkEnd;
+        }
+    }
+
+    /**
+     * Add the minutes of a day bitmap, as read by DayBitmapStore.readDay()
+     *
+     * @param firstMinute The minute of the top bit of the first word
+     * @param words The bitmap, earliest minute first
+     * @param bitCount The number of bits to read
+     */
+    public void addWords(int firstMinute, long[] words, int bitCount) {
+        for (int word = 0; word << 6 < bitCount; word++) {
+            long bits = words[word];
+            while (bits != 0) {
+                int bit = Long.numberOfLeadingZeros(bits);
+                if ((word << 6) + bit >= bitCount) {
+                    break;
+                }
+                add(firstMinute + (word << 6) + bit);
+                bits &= ~(Long.MIN_VALUE >>> bit);
+            }
+        }
+    }
+
+    /**
+     * Check whether a minute is in the set
+     */
+    public boolean contains(int minute) {
+        if (minute < 0) {
+            return false;
+        }
+        int index = indexOf((char) (minute >>> 16));
+        return index >= 0 && mContainers[index].contains((char) minute);
+    }
+
+    /**
+     * Get the number of minutes in the set
+     */
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < mSize; i++) {
+            cardinality += mContainers[i].cardinality;
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Find the first minute in the set at or after a minute
+     *
+     * @return The minute, or -1 if there is none
+     */
+    public int nextMinute(int fromMinute) {
+        fromMinute = Math.max(fromMinute, 0);
+        char key = (char) (fromMinute >>> 16);
+        int index = indexOf(key);
+        if (index >= 0) {
+            int low = mContainers[index].next(fromMinute & 0xFFFF);
+            if (low >= 0) {
+                return (key << 16) | low;
+            }
+            index++;
+        } else {
+            index = -index - 1;
+        }
+
+        // The first minute of the next container, which is never empty
+        if (index < mSize) {
+            return (mKeys[index] << 16) | mContainers[index].next(0);
+        }
+        return -1;
+    }
+
+    /**
+     * Get the minutes in both sets
+     */
+    public MinuteBitmap and(MinuteBitmap other) {
+        MinuteBitmap result = new MinuteBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < mSize && j < other.mSize) {
+            if (mKeys[i] < other.mKeys[j]) {
+                i++;
+            } else if (mKeys[i] > other.mKeys[j]) {
+                j++;
+            } else {
+                result.append(mKeys[i], mContainers[i].and(other.mContainers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the minutes in either set
+     */
+    public MinuteBitmap or(MinuteBitmap other) {
+        MinuteBitmap result = new MinuteBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < mSize || j < other.mSize) {
+            if (j == other.mSize || (i < mSize && mKeys[i] < other.mKeys[j])) {
+                result.append(mKeys[i], mContainers[i].copy());
+                i++;
+            } else if (i == mSize || mKeys[i] > other.mKeys[j]) {
+                result.append(other.mKeys[j], other.mContainers[j].copy());
+                j++;
+            } else {
+                result.append(mKeys[i], mContainers[i].or(other.mContainers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the minutes in this set that are not in the other
+     */
+    public MinuteBitmap andNot(MinuteBitmap other) {
+        MinuteBitmap result = new MinuteBitmap();
+        int j = 0;
+        for (int i = 0; i < mSize; i++) {
+            while (j < other.mSize && other.mKeys[j] < mKeys[i]) {
+                j++;
+            }
+            if (j < other.mSize && other.mKeys[j] == mKeys[i]) {
+                result.append(mKeys[i], mContainers[i].andNot(other.mContainers[j]));
+            } else {
+                result.append(mKeys[i], mContainers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Count the minutes in both sets, without building the intersection
+     */
+    public int andCardinality(MinuteBitmap other) {
+        int cardinality = 0;
+        int i = 0;
+        int j = 0;
+        while (i < mSize && j < other.mSize) {
+            if (mKeys[i] < other.mKeys[j]) {
+                i++;
+            } else if (mKeys[i] > other.mKeys[j]) {
+                j++;
+            } else {
+                cardinality += mContainers[i].andCardinality(other.mContainers[j]);
+                i++;
+                j++;
+            }
+        }
+        return cardinality;
+    }
+
+    /**
+     * Get the number of bytes the containers take, for comparing with the raw records
+     */
+    public int getSizeInBytes() {
+        int bytes = 0;
+        for (int i = 0; i < mSize; i++) {
+            Container container = mContainers[i];
+            bytes += 2 + (container.bits != null ? 8 * BITMAP_WORDS : 2 * container.cardinality);
+        }
+        return bytes;
+    }
+
+    private int indexOf(char key) {
+        int low = 0;
+        int high = mSize - 1;
+
+        // Most additions go to the last container
+        if (mSize > 0 && mKeys[high] == key) {
+            return high;
+        }
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mKeys[mid] < key) {
+                low = mid + 1;
+            } else if (mKeys[mid] > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private Container getOrCreate(char key) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            return mContainers[index];
+        }
+
+        index = -index - 1;
+        grow();
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        System.arraycopy(mContainers, index, mContainers, index + 1, mSize - index);
+        Container container = new Container();
+        mKeys[index] = key;
+        mContainers[index] = container;
+        mSize++;
+        return container;
+    }
+
+    /**
+     * Add a container after the last one, unless it is empty
+     */
+    private void append(char key, Container container) {
+        if (container.cardinality == 0) {
+            return;
+        }
+        grow();
+        mKeys[mSize] = key;
+        mContainers[mSize] = container;
+        mSize++;
+    }
+
+    private void grow() {
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mContainers = Arrays.copyOf(mContainers, mSize * 2);
+        }
+    }
+
+    /**
+     * The minutes that share a key: a sorted array of low parts while there are few,
+     * a bitmap once there are many
+     */
+    private static final class Container {
+
+        // The low parts, when bits is null
+        char[] array = new char[4];
+
+        // The bitmap, when the container is dense
+        long[] bits;
+
+        // Number of minutes in the container
+        int cardinality;
+
+        void add(char value) {
+            if (bits != null) {
+                long before = bits[value >>> 6];
+                long after = before | (1L << value);
+                if (before != after) {
+                    bits[value >>> 6] = after;
+                    cardinality++;
+                }
+                return;
+            }
+
+            // Minutes mostly arrive in order, so look at the end first
+            int index;
+            if (cardinality == 0 || array[cardinality - 1] < value) {
+                index = cardinality;
+            } else {
+                index = Arrays.binarySearch(array, 0, cardinality, value);
+                if (index >= 0) {
+                    return;
+                }
+                index = -index - 1;
+            }
+
+            if (cardinality == ARRAY_MAX_SIZE) {
+                toBitmap();
+                add(value);
+                return;
+            }
+            if (cardinality == array.length) {
+                int length = Math.min(Math.max(cardinality * 2, 4), ARRAY_MAX_SIZE);
+                array = Arrays.copyOf(array, length);
+            }
+            System.arraycopy(array, index, array, index + 1, cardinality - index);
+            array[index] = value;
+            cardinality++;
+        }
+
+        void addRange(int start, int end) {
+            if (bits == null && cardinality + (end - start) <= ARRAY_MAX_SIZE) {
+                for (int value = start; value < end; value++) {
+                    add((char) value);
+                }
+                return;
+            }
+            if (bits == null) {
+                toBitmap();
+            }
+            int firstWord = start >>> 6;
+            int lastWord = (end - 1) >>> 6;
+            for (int word = firstWord; word <= lastWord; word++) {
+                long mask = -1L;
+                if (word == firstWord) {
+                    mask &= -1L << start;
+                }
+                if (word == lastWord) {
+                    mask &= -1L >>> (63 - ((end - 1) & 63));
+                }
+                cardinality += Long.bitCount(mask & ~bits[word]);
+                bits[word] |= mask;
+            }
+        }
+
+        boolean contains(char value) {
+            if (bits != null) {
+                return (bits[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, cardinality, value) >= 0;
+        }
+
+        /**
+         * Find the first value at or after a value
+         *
+         * @return The value, or -1 if there is none
+         */
+        int next(int from) {
+            if (bits != null) {
+                int word = from >>> 6;
+                if (word >= BITMAP_WORDS) {
+                    return -1;
+                }
+                long remaining = bits[word] & (-1L << from);
+                while (remaining == 0) {
+                    if (++word == BITMAP_WORDS) {
+                        return -1;
+                    }
+                    remaining = bits[word];
+                }
+                return (word << 6) + Long.numberOfTrailingZeros(remaining);
+            }
+
+            int index = Arrays.binarySearch(array, 0, cardinality, (char) from);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < cardinality ? array[index] : -1;
+        }
+
+        Container copy() {
+            Container copy = new Container();
+            copy.cardinality = cardinality;
+            if (bits != null) {
+                copy.bits = bits.clone();
+                copy.array = null;
+            } else {
+                copy.array = Arrays.copyOf(array, Math.max(cardinality, 1));
+            }
+            return copy;
+        }
+
+        Container and(Container other) {
+            Container result = new Container();
+            if (bits != null && other.bits != null) {
+                result.array = null;
+                result.bits = new long[BITMAP_WORDS];
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    result.bits[i] = bits[i] & other.bits[i];
+                }
+                result.cardinality = popcount(result.bits);
+                result.shrink();
+            } else if (bits != null || other.bits != null) {
+                Container sparse = bits == null ? this : other;
+                Container dense = bits == null ? other : this;
+                result.array = new char[Math.max(sparse.cardinality, 1)];
+                for (int i = 0; i < sparse.cardinality; i++) {
+                    char value = sparse.array[i];
+                    if ((dense.bits[value >>> 6] & (1L << value)) != 0) {
+                        result.array[result.cardinality++] = value;
+                    }
+                }
+            } else {
+                result.array = new char[Math.max(Math.min(cardinality, other.cardinality), 1)];
+                int i = 0;
+                int j = 0;
+                while (i < cardinality && j < other.cardinality) {
+                    if (array[i] < other.array[j]) {
+                        i++;
+                    } else if (array[i] > other.array[j]) {
+                        j++;
+                    } else {
+                        result.array[result.cardinality++] = array[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        int andCardinality(Container other) {
+            int count = 0;
+            if (bits != null && other.bits != null) {
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    count += Long.bitCount(bits[i] & other.bits[i]);
+                }
+            } else if (bits != null || other.bits != null) {
+                Container sparse = bits == null ? this : other;
+                Container dense = bits == null ? other : this;
+                for (int i = 0; i < sparse.cardinality; i++) {
+                    char value = sparse.array[i];
+                    if ((dense.bits[value >>> 6] & (1L << value)) != 0) {
+                        count++;
+                    }
+                }
+            } else {
+                int i = 0;
+                int j = 0;
+                while (i < cardinality && j < other.cardinality) {
+                    if (array[i] < other.array[j]) {
+                        i++;
+                    } else if (array[i] > other.array[j]) {
+                        j++;
+                    } else {
+                        count++;
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        Container or(Container other) {
+            if (bits == null && other.bits == null
+                    && cardinality + other.cardinality <= ARRAY_MAX_SIZE) {
+                Container result = new Container();
+                result.array = new char[Math.max(cardinality + other.cardinality, 1)];
+                int i = 0;
+                int j = 0;
+                while (i < cardinality || j < other.cardinality) {
+                    char value;
+                    if (j == other.cardinality
+                            || (i < cardinality && array[i] < other.array[j])) {
+                        value = array[i++];
+                    } else if (i == cardinality || array[i] > other.array[j]) {
+                        value = other.array[j++];
+                    } else {
+                        value = array[i++];
+                        j++;
+                    }
+                    result.array[result.cardinality++] = value;
+                }
+                return result;
+            }
+
+            Container result = copy();
+            if (result.bits == null) {
+                result.toBitmap();
+            }
+            if (other.bits != null) {
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    result.bits[i] |= other.bits[i];
+                }
+            } else {
+                for (int i = 0; i < other.cardinality; i++) {
+                    char value = other.array[i];
+                    result.bits[value >>> 6] |= 1L << value;
+                }
+            }
+            result.cardinality = popcount(result.bits);
+            result.shrink();
+            return result;
+        }
+
+        Container andNot(Container other) {
+            Container result;
+            if (bits != null) {
+                result = copy();
+                if (other.bits != null) {
+                    for (int i = 0; i < BITMAP_WORDS; i++) {
+                        result.bits[i] &= ~other.bits[i];
+                    }
+                } else {
+                    for (int i = 0; i < other.cardinality; i++) {
+                        char value = other.array[i];
+                        result.bits[value >>> 6] &= ~(1L << value);
+                    }
+                }
+                result.cardinality = popcount(result.bits);
+                result.shrink();
+                return result;
+            }
+
+            result = new Container();
+            result.array = new char[Math.max(cardinality, 1)];
+            int j = 0;
+            for (int i = 0; i < cardinality; i++) {
+                char value = array[i];
+                boolean removed;
+                if (other.bits != null) {
+                    removed = (other.bits[value >>> 6] & (1L << value)) != 0;
+                } else {
+                    while (j < other.cardinality && other.array[j] < value) {
+                        j++;
+                    }
+                    removed = j < other.cardinality && other.array[j] == value;
+                }
+                if (!removed) {
+                    result.array[result.cardinality++] = value;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Switch from the sorted array to the bitmap
+         */
+        private void toBitmap() {
+            bits = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                bits[array[i] >>> 6] |= 1L << array[i];
+            }
+            array = null;
+        }
+
+        /**
+         * Switch from the bitmap to a sorted array if that is smaller
+         */
+        private void shrink() {
+            if (bits == null || cardinality > ARRAY_MAX_SIZE) {
+                return;
+            }
+            array = new char[Math.max(cardinality, 1)];
+            int count = 0;
+            for (int word = 0; word < BITMAP_WORDS; word++) {
+                long remaining = bits[word];
+                while (remaining != 0) {
+                    array[count++] = (char) ((word << 6) + Long.numberOfTrailingZeros(remaining));
+                    remaining &= remaining - 1;
+                }
+            }
+            bits = null;
+        }
+
+        private static int popcount(long[] words) {
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                count += Long.bitCount(words[i]);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.janacare.walkmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Prefix sums over the minutes spent in one activity, kept as a Fenwick tree in a
+ * memory-mapped file.
+ * <p>
+ * Every minute since the first one counted has a position in the tree, holding 1 if the
+ * minute was spent in the activity. Counting a minute and summing any range of minutes both
+ * touch O(log n) nodes, so "on foot between 7:00 and 9:30 over the last 60 days" is 60
+ * range sums of about 40 node reads each.
+ * <p>
+ * The file starts with a 16 byte header (magic, activity type, first minute, capacity),
+ * followed by one int node per position. The capacity is a power of two and doubles when
+ * the minutes outgrow it, which adds one node that covers the old tree.
+ */
+public class MinuteFenwickIndex implements BucketListener {
+
+    // Size of the file header in bytes
+    private static final int HEADER_SIZE = 16;
+
+    // Marks the start of the file ("WKF1")
+    private static final int FILE_MAGIC = 0x574B4631;
+
+    // Offsets in the header
+    private static final int TYPE_OFFSET = 4;
+    private static final int BASE_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+
+    // Positions in a new tree, about 45 days of minutes
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    // Store the index file handle
+    private final File mFile;
+
+    // The activity whose minutes are counted
+    private final int mActivityType;
+
+    // Open file and its mapping, or null while the index is closed
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    // The minute at position 1, or -1 before the first minute, and the number of positions
+    private int mBase = -1;
+    private int mCapacity;
+
+    /**
+     * Create an index kept in the given file. The file is opened when first used.
+     *
+     * @param file The index file
+     * @param activityType The activity whose minutes are counted
+     */
+    public MinuteFenwickIndex(File file, int activityType) {
+        mFile = file;
+        mActivityType = activityType;
+    }
+
+    public int getActivityType() {
+        return mActivityType;
+    }
+
+    @Override
+    public void onBucketClosed(long bucketStartMillis, int epochDay, int minuteOfDay,
+            int activityType, int confidence) {
+        if (activityType != mActivityType || epochDay < 0) {
+            return;
+        }
+        try {
+            add(MinuteIndex.getMinuteOfEpoch(epochDay, minuteOfDay));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Count a minute. A minute already counted, or one before the first minute of the
+     * index, is left alone.
+     *
+     * @param minute The minute, numbered as in MinuteIndex
+     */
+    public synchronized void add(int minute) throws IOException {
+        open();
+        if (mBase < 0) {
+
+            // Start the tree at the beginning of the first day
+            mBase = minute - minute % DayBoundary.MINUTES_PER_DAY;
+            mBuffer.putInt(BASE_OFFSET, mBase);
+        }
+        if (minute < mBase) {
+            return;
+        }
+
+        int position = minute - mBase + 1;
+        while (position > mCapacity) {
+            grow();
+        }
+        if (prefixSum(position) - prefixSum(position - 1) != 0) {
+            return;
+        }
+        for (int i = position; i <= mCapacity; i += i & -i) {
+            int offset = HEADER_SIZE + 4 * (i - 1);
+            mBuffer.putInt(offset, mBuffer.getInt(offset) + 1);
+        }
+    }
+
+    /**
+     * Count the minutes in a range
+     *
+     * @param fromMinute The first minute of the range
+     * @param toMinute The minute after the range
+     */
+    public synchronized int sum(int fromMinute, int toMinute) throws IOException {
+        open();
+        if (mBase < 0 || fromMinute >= toMinute) {
+            return 0;
+        }
+        return prefixSum(toPosition(toMinute)) - prefixSum(toPosition(fromMinute));
+    }
+
+    /**
+     * Count the minutes in the same window of every day in a range of days
+     *
+     * @param firstDay The first epoch day
+     * @param lastDay The last epoch day, included
+     * @param fromMinute The first minute of the window in each day
+     * @param toMinute The minute after the window
+     */
+    public synchronized int sumDailyWindow(int firstDay, int lastDay, int fromMinute,
+            int toMinute) throws IOException {
+        int total = 0;
+        for (int day = firstDay; day <= lastDay; day++) {
+            total += sum(MinuteIndex.getMinuteOfEpoch(day, fromMinute),
+                    MinuteIndex.getMinuteOfEpoch(day, toMinute));
+        }
+        return total;
+    }
+
+    /**
+     * Write the mapped nodes to storage
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Close the file. The index opens it again when it is next used.
+     */
+    public synchronized void close() throws IOException {
+        if (mRandomAccessFile != null) {
+            flush();
+            mBuffer = null;
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            mBase = -1;
+            mCapacity = 0;
+        }
+    }
+
+    /**
+     * Get the number of positions before a minute, clamped to the tree
+     */
+    private int toPosition(int minute) {
+        return (int) Math.max(0, Math.min((long) minute - mBase, mCapacity));
+    }
+
+    /**
+     * Add up the positions from 1 to the given one
+     */
+    private int prefixSum(int position) {
+        int sum = 0;
+        for (int i = position; i > 0; i -= i & -i) {
+            sum += mBuffer.getInt(HEADER_SIZE + 4 * (i - 1));
+        }
+        return sum;
+    }
+
+    /**
+     * Double the capacity. Of the new nodes only the last one covers old positions, and
+     * it covers all of them.
+     */
+    private void grow() throws IOException {
+        int oldCapacity = mCapacity;
+        int total = prefixSum(oldCapacity);
+        map(oldCapacity * 2);
+        for (int i = oldCapacity + 1; i < mCapacity; i++) {
+            mBuffer.putInt(HEADER_SIZE + 4 * (i - 1), 0);
+        }
+        mBuffer.putInt(HEADER_SIZE + 4 * (mCapacity - 1), total);
+        mBuffer.putInt(CAPACITY_OFFSET, mCapacity);
+    }
+
+    /**
+     * Open and map the file, creating it if needed
+     */
+    private void open() throws IOException {
+        if (mRandomAccessFile != null) {
+            return;
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long length = mRandomAccessFile.length();
+        if (length >= HEADER_SIZE) {
+            map(0);
+            int capacity = mBuffer.getInt(CAPACITY_OFFSET);
+            if (mBuffer.getInt(0) == FILE_MAGIC
+                    && mBuffer.getInt(TYPE_OFFSET) == mActivityType
+                    && capacity >= INITIAL_CAPACITY && Integer.bitCount(capacity) == 1
+                    && length >= HEADER_SIZE + 4L * capacity) {
+                map(capacity);
+                mBase = mBuffer.getInt(BASE_OFFSET);
+                return;
+            }
+        }
+
+        // A new or unreadable file starts out empty
+        map(INITIAL_CAPACITY);
+        for (int i = 0; i < mCapacity; i++) {
+            mBuffer.putInt(HEADER_SIZE + 4 * i, 0);
+        }
+        mBase = -1;
+        mBuffer.putInt(0, FILE_MAGIC);
+        mBuffer.putInt(TYPE_OFFSET, mActivityType);
+        mBuffer.putInt(BASE_OFFSET, mBase);
+        mBuffer.putInt(CAPACITY_OFFSET, mCapacity);
+    }
+
+    /**
+     * Map enough of the file to hold the given number of nodes
+     */
+    private void map(int capacity) throws IOException {
+        FileChannel channel = mRandomAccessFile.getChannel();
+        mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + 4L * capacity);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        mCapacity = capacity;
+    }
+}
@@ -0,0 +1,140 @@
+package com.janacare.walkmeter;
+
+import java.io.IOException;
+
+/**
+ * An index of every counted minute, one MinuteBitmap per activity type.
+ * <p>
+ * Minutes are numbered from the start of epoch day 0, local time, so a minute number fits
+ * in an int for the next 4000 years. Questions such as "every weekday morning on foot in
+ * 2026" are answered by intersecting an activity with a mask from timeOfDayMask(), which
+ * only touches the compressed containers.
+ * <p>
+ * The index is kept in memory. It is filled from a DayBitmapStore, and kept current from
+ * the buckets closed after that. Adding a minute twice has no effect, so the two may
+ * overlap.
+ */
+public class MinuteIndex implements BucketListener {
+
+    // Days of the week for timeOfDayMask(), as bits
+    public static final int MONDAY = 1;
+    public static final int TUESDAY = 1 << 1;
+    public static final int WEDNESDAY = 1 << 2;
+    public static final int THURSDAY = 1 << 3;
+    public static final int FRIDAY = 1 << 4;
+    public static final int SATURDAY = 1 << 5;
+    public static final int SUNDAY = 1 << 6;
+    public static final int WEEKDAYS = MONDAY | TUESDAY | WEDNESDAY | THURSDAY | FRIDAY;
+    public static final int EVERY_DAY = WEEKDAYS | SATURDAY | SUNDAY;
+
+    // The minutes of each activity type
+    private final MinuteBitmap[] mBitmaps = new MinuteBitmap[ActivityTypes.COUNT];
+
+    /**
+     * Create an empty index
+     */
+    public MinuteIndex() {
+        for (int i = 0; i < mBitmaps.length; i++) {
+            mBitmaps[i] = new MinuteBitmap();
+        }
+    }
+
+    @Override
+    public void onBucketClosed(long bucketStartMillis, int epochDay, int minuteOfDay,
+            int activityType, int confidence) {
+        add(epochDay, minuteOfDay, activityType);
+    }
+
+    /**
+     * Add one minute of an activity
+     */
+    public synchronized void add(int epochDay, int minuteOfDay, int activityType) {
+        if (epochDay >= 0 && activityType >= 0 && activityType < ActivityTypes.COUNT) {
+            mBitmaps[activityType].add(getMinuteOfEpoch(epochDay, minuteOfDay));
+        }
+    }
+
+    /**
+     * Add every minute kept in a DayBitmapStore
+     */
+    public void addDays(DayBitmapStore store) throws IOException {
+        int firstDay = store.getFirstDay();
+        int lastDay = store.getLastDay();
+        if (firstDay < 0) {
+            return;
+        }
+
+        long[] words = new long[DayBitmapStore.BITMAP_WORDS];
+        for (int day = firstDay; day <= lastDay; day++) {
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                if (store.readDay(day, type, words)) {
+                    synchronized (this) {
+                        mBitmaps[type].addWords(getMinuteOfEpoch(day, 0), words,
+                                DayBoundary.MINUTES_PER_DAY);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a copy of the minutes of an activity
+     */
+    public synchronized MinuteBitmap getMinutes(int activityType) {
+        return mBitmaps[activityType].or(new MinuteBitmap());
+    }
+
+    /**
+     * Get the minutes of an activity that are also in a mask
+     */
+    public synchronized MinuteBitmap select(int activityType, MinuteBitmap mask) {
+        return mBitmaps[activityType].and(mask);
+    }
+
+    /**
+     * Count the minutes of an activity that are also in a mask
+     */
+    public synchronized int count(int activityType, MinuteBitmap mask) {
+        return mBitmaps[activityType].andCardinality(mask);
+    }
+
+    /**
+     * Get the number of bytes the index takes
+     */
+    public synchronized int getSizeInBytes() {
+        int bytes = 0;
+        for (int i = 0; i < mBitmaps.length; i++) {
+            bytes += mBitmaps[i].getSizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Number a minute from the start of epoch day 0
+     */
+    public static int getMinuteOfEpoch(int epochDay, int minuteOfDay) {
+        return epochDay * DayBoundary.MINUTES_PER_DAY + minuteOfDay;
+    }
+
+    /**
+     * Build a mask of the same time of day on chosen days of the week
+     *
+     * @param firstDay The first epoch day
+     * @param lastDay The last epoch day, included
+     * @param fromMinute The first minute of the window in each day
+     * @param toMinute The minute after the window
+     * @param daysOfWeek The days to include, for example WEEKDAYS
+     */
+    public static MinuteBitmap timeOfDayMask(int firstDay, int lastDay, int fromMinute,
+            int toMinute, int daysOfWeek) {
+        MinuteBitmap mask = new MinuteBitmap();
+        for (int day = Math.max(firstDay, 0); day <= lastDay; day++) {
+
+            // 1970-01-01 was a Thursday
+            if ((daysOfWeek & (1 << ((day + 3) % 7))) != 0) {
+                mask.addRange(getMinuteOfEpoch(day, fromMinute), getMinuteOfEpoch(day, toMinute));
+            }
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,355 @@
+package com.janacare.walkmeter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A KLL quantile sketch, which answers "what value is at the given fraction of everything
+ * added" to within about 1.7% of the count with the default k of 200.
+ * <p>
+ * Values are kept in levels of compactors. An item on level h stands for 2^h added values.
+ * When the sketch is over its capacity, the lowest full level is sorted and every other
+ * item moves up a level, starting from a random one of the first two. The capacity of a
+ * level shrinks by 2/3 for each level below the top, so the sketch holds about 3k items
+ * however many values were added. Sketches with the same k can be merged, for example the
+ * sketches of several devices, and are written and read with writeTo() and readFrom().
+ */
+public class QuantileSketch {
+
+    // The k that gives about 1.7% rank error
+    public static final int DEFAULT_K = 200;
+
+    // Smallest capacity of a level
+    private static final int MIN_LEVEL_CAPACITY = 8;
+
+    // Marks the start of a written sketch ("WKQ1")
+    private static final int MAGIC = 0x574B5131;
+
+    // Accuracy parameter, the capacity of the top level
+    private final int mK;
+
+    // Items of each level and the number used, level 0 first
+    private float[][] mLevels = new float[1][];
+    private int[] mSizes = new int[1];
+    private int mLevelCount = 1;
+
+    // Number of items held, and the number the levels may hold together
+    private int mRetained;
+    private int mCapacity;
+
+    // Number of values added, and the lowest and highest of them
+    private long mCount;
+    private float mMin = Float.NaN;
+    private float mMax = Float.NaN;
+
+    // State of the coin that picks which half of a level moves up
+    private long mRandom = 0x9E3779B97F4A7C15L;
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k The accuracy parameter. The rank error falls as k grows, and the sketch holds
+     *        about 3k items.
+     */
+    public QuantileSketch(int k) {
+        if (k < MIN_LEVEL_CAPACITY) {
+            throw new IllegalArgumentException("Invalid sketch size " + k);
+        }
+        mK = k;
+        mLevels[0] = new float[MIN_LEVEL_CAPACITY];
+        mCapacity = getLevelCapacity(0);
+    }
+
+    public int getK() {
+        return mK;
+    }
+
+    /**
+     * Get the number of values added
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Get the lowest value added, or NaN if the sketch is empty
+     */
+    public float getMin() {
+        return mMin;
+    }
+
+    /**
+     * Get the highest value added, or NaN if the sketch is empty
+     */
+    public float getMax() {
+        return mMax;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Add a value
+     */
+    public void add(float value) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        if (mCount == 0) {
+            mMin = value;
+            mMax = value;
+        } else {
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+        mCount++;
+        append(0, value);
+        if (mRetained > mCapacity) {
+            compress();
+        }
+    }
+
+    /**
+     * Add the values of another sketch to this one
+     *
+     * @param other A sketch with the same k
+     */
+    public void merge(QuantileSketch other) {
+        if (other.mK != mK) {
+            throw new IllegalArgumentException("Cannot merge sketches of size " + mK
+                    + " and " + other.mK);
+        }
+        if (other.mCount == 0) {
+            return;
+        }
+        if (mCount == 0) {
+            mMin = other.mMin;
+            mMax = other.mMax;
+        } else {
+            mMin = Math.min(mMin, other.mMin);
+            mMax = Math.max(mMax, other.mMax);
+        }
+        mCount += other.mCount;
+        for (int level = 0; level < other.mLevelCount; level++) {
+            for (int i = 0; i < other.mSizes[level]; i++) {
+                append(level, other.mLevels[level][i]);
+            }
+        }
+        while (mRetained > mCapacity) {
+            compress();
+        }
+    }
+
+    /**
+     * Get the value at a fraction of the values added, such as 0.5 for the median
+     *
+     * @param fraction A fraction from 0 to 1
+     * @return The estimated value, or NaN if the sketch is empty
+     */
+    public float getQuantile(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Invalid fraction " + fraction);
+        }
+        if (mCount == 0) {
+            return Float.NaN;
+        }
+        if (fraction == 0) {
+            return mMin;
+        }
+        if (fraction == 1) {
+            return mMax;
+        }
+
+        // Sort every item with its weight, then walk up to the wanted rank
+        int retained = mRetained;
+        long[] items = new long[retained];
+        int n = 0;
+        for (int level = 0; level < mLevelCount; level++) {
+            for (int i = 0; i < mSizes[level]; i++) {
+                items[n++] = ((long) sortableBits(mLevels[level][i]) << 32) | level;
+            }
+        }
+        Arrays.sort(items);
+
+        long weight = 0;
+        double rank = fraction * mCount;
+        for (int i = 0; i < retained; i++) {
+            weight += 1L << (int) items[i];
+            if (weight >= rank) {
+                return fromSortableBits((int) (items[i] >> 32));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Get the fraction of the values added that are lower than a value
+     */
+    public double getRank(float value) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long weight = 0;
+        for (int level = 0; level < mLevelCount; level++) {
+            for (int i = 0; i < mSizes[level]; i++) {
+                if (mLevels[level][i] < value) {
+                    weight += 1L << level;
+                }
+            }
+        }
+        return (double) weight / mCount;
+    }
+
+    /**
+     * Remove every value
+     */
+    public void clear() {
+        mLevels = new float[1][];
+        mLevels[0] = new float[MIN_LEVEL_CAPACITY];
+        mSizes = new int[1];
+        mLevelCount = 1;
+        mRetained = 0;
+        mCapacity = getLevelCapacity(0);
+        mCount = 0;
+        mMin = Float.NaN;
+        mMax = Float.NaN;
+    }
+
+    /**
+     * Write the sketch so that it can be read back, on this or another device
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(mK);
+        out.writeLong(mCount);
+        out.writeFloat(mMin);
+        out.writeFloat(mMax);
+        out.writeInt(mLevelCount);
+        for (int level = 0; level < mLevelCount; level++) {
+            out.writeInt(mSizes[level]);
+            for (int i = 0; i < mSizes[level]; i++) {
+                out.writeFloat(mLevels[level][i]);
+            }
+        }
+    }
+
+    /**
+     * Read a sketch written by writeTo()
+     */
+    public static QuantileSketch readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a quantile sketch");
+        }
+        int k = in.readInt();
+        long count = in.readLong();
+        float min = in.readFloat();
+        float max = in.readFloat();
+        int levelCount = in.readInt();
+        if (k < MIN_LEVEL_CAPACITY || count < 0 || levelCount < 1 || levelCount > 62) {
+            throw new IOException("Invalid quantile sketch");
+        }
+
+        QuantileSketch sketch = new QuantileSketch(k);
+        sketch.mCount = count;
+        sketch.mMin = min;
+        sketch.mMax = max;
+        for (int level = 0; level < levelCount; level++) {
+            int size = in.readInt();
+            if (size < 0 || size > count) {
+                throw new IOException("Invalid quantile sketch");
+            }
+            for (int i = 0; i < size; i++) {
+                sketch.append(level, in.readFloat());
+            }
+        }
+        return sketch;
+    }
+
+    /**
+     * Get the number of items held
+     */
+    public int getRetained() {
+        return mRetained;
+    }
+
+    private int getLevelCapacity(int level) {
+        int depth = mLevelCount - level - 1;
+        return Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(mK * Math.pow(2.0 / 3, depth)));
+    }
+
+    private void append(int level, float value) {
+        while (level >= mLevelCount) {
+            addLevel();
+        }
+        float[] items = mLevels[level];
+        if (mSizes[level] == items.length) {
+            items = Arrays.copyOf(items, items.length * 2);
+            mLevels[level] = items;
+        }
+        items[mSizes[level]++] = value;
+        mRetained++;
+    }
+
+    private void addLevel() {
+        if (mLevelCount == mLevels.length) {
+            mLevels = Arrays.copyOf(mLevels, mLevelCount * 2);
+            mSizes = Arrays.copyOf(mSizes, mLevelCount * 2);
+        }
+        mLevels[mLevelCount] = new float[MIN_LEVEL_CAPACITY];
+        mSizes[mLevelCount] = 0;
+        mLevelCount++;
+
+        // Every level sits one deeper below the new top
+        mCapacity = 0;
+        for (int level = 0; level < mLevelCount; level++) {
+            mCapacity += getLevelCapacity(level);
+        }
+    }
+
+    /**
+     * Halve the lowest full level into the level above it
+     */
+    private void compress() {
+        int level = 0;
+        while (level < mLevelCount - 1 && mSizes[level] < getLevelCapacity(level)) {
+            level++;
+        }
+
+        float[] items = mLevels[level];
+        int size = mSizes[level];
+        Arrays.sort(items, 0, size);
+
+        // An odd item out stays behind, so an even number is halved
+        int start = size % 2;
+        int offset = nextBit();
+        for (int i = start + offset; i < size; i += 2) {
+            append(level + 1, items[i]);
+        }
+        mRetained -= size - start;
+        mSizes[level] = start;
+    }
+
+    private int nextBit() {
+        mRandom ^= mRandom << 13;
+        mRandom ^= mRandom >>> 7;
+        mRandom ^= mRandom << 17;
+        return (int) (mRandom >>> 63);
+    }
+
+    /**
+     * Map a float to an int that sorts the same way
+     */
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits < 0 ? bits ^ 0x7FFFFFFF : bits;
+    }
+
+    private static float fromSortableBits(int bits) {
+        return Float.intBitsToFloat(bits < 0 ? bits ^ 0x7FFFFFFF : bits);
+    }
+}
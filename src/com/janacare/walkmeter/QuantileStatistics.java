@@ -0,0 +1,232 @@
+package com.janacare.walkmeter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Quantile sketches of the minutes of each activity type per day and per session, for
+ * figures such as "your median day" or "90th percentile session length".
+ * <p>
+ * A day goes into the day sketches when the first bucket of a later day closes, with the
+ * minutes of every activity type that day. Days with no buckets in between go in as 0
+ * minutes. A session goes into the session sketch of its activity when a SessionSegmenter
+ * closes it. The sketches hold about 3k items each, however long the history. Sketches
+ * created with a file are saved to it each time a day closes.
+ */
+public class QuantileStatistics implements BucketListener, SessionListener {
+
+    // Marks the start of the file ("WKP1")
+    private static final int FILE_MAGIC = 0x574B5031;
+
+    // Most days with no buckets added at once. A longer gap is more likely a clock change
+    // than a year without the phone.
+    private static final int MAX_EMPTY_DAYS = 366;
+
+    // Saved each time a day closes, or null to only save when asked
+    private final File mFile;
+
+    // The sketches of day totals and of session lengths, by activity type
+    private final QuantileSketch[] mDays = new QuantileSketch[ActivityTypes.COUNT];
+    private final QuantileSketch[] mSessions = new QuantileSketch[ActivityTypes.COUNT];
+
+    // The day being counted, or -1 before the first bucket, and its minutes by type
+    private int mCurrentDay = -1;
+    private final int[] mDayMinutes = new int[ActivityTypes.COUNT];
+
+    public QuantileStatistics() {
+        this(null);
+    }
+
+    /**
+     * Create empty sketches that are saved each time a day closes
+     *
+     * @param file The file to save to, or null to only save when asked
+     */
+    public QuantileStatistics(File file) {
+        mFile = file;
+        for (int type = 0; type < ActivityTypes.COUNT; type++) {
+            mDays[type] = new QuantileSketch();
+            mSessions[type] = new QuantileSketch();
+        }
+    }
+
+    @Override
+    public synchronized void onBucketClosed(long bucketStartMillis, int epochDay,
+            int minuteOfDay, int activityType, int confidence) {
+        if (epochDay < 0 || activityType < 0 || activityType >= ActivityTypes.COUNT
+                || epochDay < mCurrentDay) {
+            return;
+        }
+        if (epochDay != mCurrentDay) {
+            closeDay(epochDay);
+        }
+        mDayMinutes[activityType]++;
+    }
+
+    @Override
+    public synchronized void onSessionClosed(long startMillis, long endMillis,
+            int activityType, int meanConfidence) {
+        if (activityType >= 0 && activityType < ActivityTypes.COUNT) {
+            mSessions[activityType].add((float) (endMillis - startMillis) / 60000);
+        }
+    }
+
+    /**
+     * Get the day being counted, or -1 before the first bucket
+     */
+    public synchronized int getCurrentDay() {
+        return mCurrentDay;
+    }
+
+    /**
+     * Replace the minutes of an activity on the day being counted, for example with the
+     * daily totals when buckets were counted after the last save
+     */
+    public synchronized void setDayMinutes(int activityType, int minutes) {
+        mDayMinutes[activityType] = minutes;
+    }
+
+    /**
+     * Get the minutes of an activity on the day at a fraction of all days, such as 0.5 for
+     * the median day
+     *
+     * @return The minutes, or NaN if no day has finished yet
+     */
+    public synchronized float getDayQuantile(int activityType, double fraction) {
+        return mDays[activityType].getQuantile(fraction);
+    }
+
+    /**
+     * Get the session length of an activity at a fraction of all its sessions
+     *
+     * @return The minutes, or NaN if no session has finished yet
+     */
+    public synchronized float getSessionQuantile(int activityType, double fraction) {
+        return mSessions[activityType].getQuantile(fraction);
+    }
+
+    /**
+     * Get the day sketch of an activity, for example to merge with another device's
+     */
+    public QuantileSketch getDaySketch(int activityType) {
+        return mDays[activityType];
+    }
+
+    /**
+     * Get the session sketch of an activity
+     */
+    public QuantileSketch getSessionSketch(int activityType) {
+        return mSessions[activityType];
+    }
+
+    /**
+     * Add the sketches of another device to these
+     */
+    public synchronized void merge(QuantileStatistics other) {
+        for (int type = 0; type < ActivityTypes.COUNT; type++) {
+            mDays[type].merge(other.mDays[type]);
+            mSessions[type].merge(other.mSessions[type]);
+        }
+    }
+
+    /**
+     * Write the sketches and the day being counted. The file is replaced in one step, so a
+     * failed write leaves the last one in place.
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(ActivityTypes.COUNT);
+            out.writeInt(mCurrentDay);
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                out.writeInt(mDayMinutes[type]);
+            }
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                mDays[type].writeTo(out);
+                mSessions[type].writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Read the state written by save(). A missing file leaves the sketches empty.
+     */
+    public synchronized void load(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != ActivityTypes.COUNT) {
+                throw new IOException("Invalid quantile file " + file);
+            }
+            int currentDay = in.readInt();
+            int[] dayMinutes = new int[ActivityTypes.COUNT];
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                dayMinutes[type] = in.readInt();
+            }
+            QuantileSketch[] days = new QuantileSketch[ActivityTypes.COUNT];
+            QuantileSketch[] sessions = new QuantileSketch[ActivityTypes.COUNT];
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                days[type] = QuantileSketch.readFrom(in);
+                sessions[type] = QuantileSketch.readFrom(in);
+            }
+
+            // Only take the state once all of it was read
+            mCurrentDay = currentDay;
+            System.arraycopy(dayMinutes, 0, mDayMinutes, 0, ActivityTypes.COUNT);
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                mDays[type].clear();
+                mDays[type].merge(days[type]);
+                mSessions[type].clear();
+                mSessions[type].merge(sessions[type]);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finish the day being counted and the days with no buckets before the next one, then
+     * save the sketches so the finished days outlive the process
+     */
+    private void closeDay(int nextDay) {
+        if (mCurrentDay >= 0) {
+            for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                mDays[type].add(mDayMinutes[type]);
+                mDayMinutes[type] = 0;
+            }
+
+            int emptyDays = Math.min(nextDay - mCurrentDay - 1, MAX_EMPTY_DAYS);
+            for (int day = 0; day < emptyDays; day++) {
+                for (int type = 0; type < ActivityTypes.COUNT; type++) {
+                    mDays[type].add(0);
+                }
+            }
+        }
+        mCurrentDay = nextDay;
+
+        if (mFile != null) {
+            try {
+                save(mFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
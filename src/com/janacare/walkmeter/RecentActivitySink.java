@@ -0,0 +1,84 @@
+package com.janacare.walkmeter;
+
+/**
+ * An ActivitySink that keeps the most recent records in memory, in a ring of primitive
+ * arrays. Nothing is written to storage.
+ */
+public class RecentActivitySink implements ActivitySink {
+
+    // The ring
+    private final long[] mTimestamps;
+    private final byte[] mActivityTypes;
+    private final byte[] mConfidences;
+
+    // Index where the next record goes, and the number of records held
+    private int mNext;
+    private int mSize;
+
+    /**
+     * Create a ring that holds up to the given number of records
+     */
+    public RecentActivitySink(int capacity) {
+        mTimestamps = new long[capacity];
+        mActivityTypes = new byte[capacity];
+        mConfidences = new byte[capacity];
+    }
+
+    @Override
+    public boolean needsLine() {
+        return false;
+    }
+
+    @Override
+    public synchronized void write(long timestampMillis, int activityType, int confidence,
+            LogLineEncoder line) {
+        mTimestamps[mNext] = timestampMillis;
+        mActivityTypes[mNext] = (byte) activityType;
+        mConfidences[mNext] = (byte) confidence;
+
+        mNext = (mNext + 1) % mTimestamps.length;
+        if (mSize < mTimestamps.length) {
+            mSize++;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Get the number of records held
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Get the timestamp of a record
+     *
+     * @param index 0 for the oldest record held, up to size() - 1 for the newest
+     */
+    public synchronized long getTimestamp(int index) {
+        return mTimestamps[slot(index)];
+    }
+
+    public synchronized int getActivityType(int index) {
+        return mActivityTypes[slot(index)];
+    }
+
+    public synchronized int getConfidence(int index) {
+        return mConfidences[slot(index)];
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("No recent record " + index);
+        }
+        int slot = mNext - mSize + index;
+        return slot < 0 ? slot + mTimestamps.length : slot;
+    }
+}
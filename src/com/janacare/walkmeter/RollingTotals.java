@@ -0,0 +1,166 @@
+package com.janacare.walkmeter;
+
+import java.io.IOException;
+
+/**
+ * Moving sums and averages of the minutes on foot over the last 7, 30 and 365 days.
+ * <p>
+ * The totals of the last 365 finished days are kept in a ring of ints. When the day rolls
+ * over, the finished day goes into the ring and each window sum adds it and drops the day
+ * that left the window, so reading a sum or an average is O(1) however long the history.
+ * Today is counted apart and is not part of the windows until it is over.
+ */
+public class RollingTotals implements BucketListener {
+
+    // The windows, in days
+    public static final int WEEK = 7;
+    public static final int MONTH = 30;
+    public static final int YEAR = 365;
+
+    // Totals of the finished days, the newest at mHead
+    private final int[] mDays = new int[YEAR];
+    private int mHead = -1;
+
+    // Number of finished days in the ring, up to a year
+    private int mRecorded;
+
+    // Sums of the newest finished days in each window
+    private int mWeekSum;
+    private int mMonthSum;
+    private int mYearSum;
+
+    // The day being counted, or -1 before the first bucket, and its minutes so far
+    private int mCurrentDay = -1;
+    private int mToday;
+
+    @Override
+    public synchronized void onBucketClosed(long bucketStartMillis, int epochDay,
+            int minuteOfDay, int activityType, int confidence) {
+        if (epochDay < 0) {
+            return;
+        }
+        advanceTo(epochDay);
+        if (activityType == ActivityTypes.ON_FOOT && epochDay == mCurrentDay) {
+            mToday++;
+        }
+    }
+
+    /**
+     * Fill the windows from the daily history. Only the last year is read.
+     *
+     * @param totals The daily history
+     * @param today The epoch day being counted now
+     */
+    public synchronized void load(DailyTotalsStore totals, int today) throws IOException {
+        mHead = -1;
+        mRecorded = 0;
+        mWeekSum = 0;
+        mMonthSum = 0;
+        mYearSum = 0;
+
+        int firstDay = totals.getFirstDay();
+        if (firstDay >= 0) {
+            for (int day = Math.max(firstDay, today - YEAR); day < today; day++) {
+                push(totals.getMinutes(day, ActivityTypes.ON_FOOT));
+            }
+        }
+        mCurrentDay = today;
+        mToday = totals.getMinutes(today, ActivityTypes.ON_FOOT);
+    }
+
+    /**
+     * Move to a later day, finishing the day being counted and any days with no buckets
+     * since. Earlier days are ignored.
+     *
+     * @param epochDay The epoch day now
+     */
+    public synchronized void advanceTo(int epochDay) {
+        if (mCurrentDay < 0) {
+            mCurrentDay = epochDay;
+            return;
+        }
+        if (epochDay <= mCurrentDay) {
+            return;
+        }
+
+        push(mToday);
+        mToday = 0;
+
+        // Days with no buckets count as 0, a year of them empties every window
+        int emptyDays = Math.min(epochDay - mCurrentDay - 1, YEAR);
+        for (int i = 0; i < emptyDays; i++) {
+            push(0);
+        }
+        mCurrentDay = epochDay;
+    }
+
+    /**
+     * Get the minutes on foot so far today
+     */
+    public synchronized int getToday() {
+        return mToday;
+    }
+
+    /**
+     * Get the minutes on foot over the last finished days of a window
+     *
+     * @param window WEEK, MONTH or YEAR
+     */
+    public synchronized int getSum(int window) {
+        switch (window) {
+            case WEEK:
+                return mWeekSum;
+            case MONTH:
+                return mMonthSum;
+            case YEAR:
+                return mYearSum;
+            default:
+                throw new IllegalArgumentException("Invalid window " + window);
+        }
+    }
+
+    /**
+     * Get the average minutes on foot per day over the last finished days of a window.
+     * While the history is shorter than the window, the days there are are averaged.
+     *
+     * @param window WEEK, MONTH or YEAR
+     */
+    public synchronized float getAverage(int window) {
+        int sum = getSum(window);
+        int days = Math.min(mRecorded, window);
+        return days == 0 ? 0f : (float) sum / days;
+    }
+
+    /**
+     * Add a finished day to the ring and the window sums
+     */
+    private void push(int minutes) {
+
+        // The days that leave the windows, read before the oldest day is overwritten
+        int leavesWeek = getDaysAgo(WEEK - 1);
+        int leavesMonth = getDaysAgo(MONTH - 1);
+        int leavesYear = getDaysAgo(YEAR - 1);
+
+        mHead = (mHead + 1) % YEAR;
+        mDays[mHead] = minutes;
+        if (mRecorded < YEAR) {
+            mRecorded++;
+        }
+
+        mWeekSum += minutes - leavesWeek;
+        mMonthSum += minutes - leavesMonth;
+        mYearSum += minutes - leavesYear;
+    }
+
+    /**
+     * Get a finished day, 0 being the newest
+     *
+     * @return Its minutes, or 0 if the ring doesn't reach back that far
+     */
+    private int getDaysAgo(int age) {
+        if (age >= mRecorded) {
+            return 0;
+        }
+        return mDays[(mHead - age + YEAR) % YEAR];
+    }
+}
@@ -0,0 +1,252 @@
+package com.janacare.walkmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Minute, hour, day and ISO week totals per activity type, updated as buckets close.
+ * <p>
+ * Each resolution is a ring of fixed-size cells. A cell holds the minutes of every activity
+ * type in one period, and a key array records which period a cell holds, so a new period
+ * takes over the oldest cell in O(1) and an update is a key check and an increment. The
+ * rings cover the last day of minutes, about three months of hours, the last 400 days and
+ * the last three years of weeks.
+ * <p>
+ * The cells can live in a memory-mapped file, so the totals survive the process without
+ * being saved, or on the heap.
+ */
+public class RollupStore implements BucketListener {
+
+    // Number of cells at each resolution
+    public static final int MINUTE_SLOTS = DayBoundary.MINUTES_PER_DAY;
+    public static final int HOUR_SLOTS = 24 * 92;
+    public static final int DAY_SLOTS = 400;
+    public static final int WEEK_SLOTS = 160;
+
+    // Marks the start of the file ("WKR1")
+    private static final int FILE_MAGIC = 0x574B5231;
+
+    // Size of the file header in bytes
+    private static final int HEADER_SIZE = 16;
+
+    // Offsets of the key arrays. A key is the period number plus one, 0 for an unused cell.
+    private static final int MINUTE_KEYS = HEADER_SIZE;
+    private static final int HOUR_KEYS = MINUTE_KEYS + 4 * MINUTE_SLOTS;
+    private static final int DAY_KEYS = HOUR_KEYS + 4 * HOUR_SLOTS;
+    private static final int WEEK_KEYS = DAY_KEYS + 4 * DAY_SLOTS;
+
+    // Offsets of the cells. A minute cell is the activity type plus one, the others hold a
+    // count of minutes per activity type: a byte per hour, a short per day and per week.
+    private static final int MINUTE_CELLS = WEEK_KEYS + 4 * WEEK_SLOTS;
+    private static final int HOUR_CELLS = MINUTE_CELLS + MINUTE_SLOTS;
+    private static final int DAY_CELLS = HOUR_CELLS + ActivityTypes.COUNT * HOUR_SLOTS;
+    private static final int WEEK_CELLS = DAY_CELLS + 2 * ActivityTypes.COUNT * DAY_SLOTS;
+
+    // Size of the whole store in bytes
+    public static final int STORE_SIZE = WEEK_CELLS + 2 * ActivityTypes.COUNT * WEEK_SLOTS;
+
+    // Store the cells, mapped from the file or on the heap
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Create an empty store on the heap
+     */
+    public RollupStore() {
+        mBuffer = ByteBuffer.allocate(STORE_SIZE);
+        mBuffer.putInt(0, FILE_MAGIC);
+    }
+
+    /**
+     * Open a store kept in a memory-mapped file, creating the file if needed. A file with
+     * another layout is cleared.
+     *
+     * @param file The rollup file
+     */
+    public RollupStore(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            boolean valid = randomAccessFile.length() == STORE_SIZE;
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, STORE_SIZE);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+
+            if (!valid || buffer.getInt(0) != FILE_MAGIC) {
+                for (int i = 0; i < STORE_SIZE; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                buffer.putInt(0, FILE_MAGIC);
+            }
+            mBuffer = buffer;
+        } finally {
+
+            // The mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public void onBucketClosed(long bucketStartMillis, int epochDay, int minuteOfDay,
+            int activityType, int confidence) {
+        add(epochDay, minuteOfDay, activityType);
+    }
+
+    /**
+     * Count one minute of an activity
+     *
+     * @param epochDay The local epoch day of the minute
+     * @param minuteOfDay The local clock minute, 0 to 1439
+     * @param activityType The activity of the minute
+     */
+    public synchronized void add(int epochDay, int minuteOfDay, int activityType) {
+        if (epochDay < 0 || activityType < 0 || activityType >= ActivityTypes.COUNT) {
+            return;
+        }
+        ByteBuffer buffer = mBuffer;
+
+        int minute = epochDay * DayBoundary.MINUTES_PER_DAY + minuteOfDay;
+        int slot = minute % MINUTE_SLOTS;
+        if (claim(MINUTE_KEYS, MINUTE_CELLS, 1, slot, minute)) {
+            buffer.put(MINUTE_CELLS + slot, (byte) (activityType + 1));
+        }
+
+        int hour = getEpochHour(epochDay, minuteOfDay);
+        slot = hour % HOUR_SLOTS;
+        if (claim(HOUR_KEYS, HOUR_CELLS, ActivityTypes.COUNT, slot, hour)) {
+            int offset = HOUR_CELLS + slot * ActivityTypes.COUNT + activityType;
+            buffer.put(offset, (byte) (buffer.get(offset) + 1));
+        }
+
+        slot = epochDay % DAY_SLOTS;
+        if (claim(DAY_KEYS, DAY_CELLS, 2 * ActivityTypes.COUNT, slot, epochDay)) {
+            int offset = DAY_CELLS + 2 * (slot * ActivityTypes.COUNT + activityType);
+            buffer.putShort(offset, (short) (buffer.getShort(offset) + 1));
+        }
+
+        int week = getIsoWeek(epochDay);
+        slot = week % WEEK_SLOTS;
+        if (claim(WEEK_KEYS, WEEK_CELLS, 2 * ActivityTypes.COUNT, slot, week)) {
+            int offset = WEEK_CELLS + 2 * (slot * ActivityTypes.COUNT + activityType);
+            buffer.putShort(offset, (short) (buffer.getShort(offset) + 1));
+        }
+    }
+
+    /**
+     * Get the activity of one minute
+     *
+     * @return The activity type, or -1 if the minute wasn't counted or is too old
+     */
+    public synchronized int getMinuteActivity(int epochDay, int minuteOfDay) {
+        int minute = epochDay * DayBoundary.MINUTES_PER_DAY + minuteOfDay;
+        if (minute < 0 || !holds(MINUTE_KEYS, minute % MINUTE_SLOTS, minute)) {
+            return -1;
+        }
+        return mBuffer.get(MINUTE_CELLS + minute % MINUTE_SLOTS) - 1;
+    }
+
+    /**
+     * Get the minutes of an activity in one hour
+     *
+     * @param epochHour The hour, from getEpochHour()
+     */
+    public synchronized int getHourMinutes(int epochHour, int activityType) {
+        if (epochHour < 0 || !holds(HOUR_KEYS, epochHour % HOUR_SLOTS, epochHour)) {
+            return 0;
+        }
+        return mBuffer.get(HOUR_CELLS + epochHour % HOUR_SLOTS * ActivityTypes.COUNT
+                + activityType);
+    }
+
+    /**
+     * Get the minutes of an activity in one local day
+     */
+    public synchronized int getDayMinutes(int epochDay, int activityType) {
+        if (epochDay < 0 || !holds(DAY_KEYS, epochDay % DAY_SLOTS, epochDay)) {
+            return 0;
+        }
+        return mBuffer.getShort(DAY_CELLS + 2 * (epochDay % DAY_SLOTS * ActivityTypes.COUNT
+                + activityType));
+    }
+
+    /**
+     * Get the minutes of an activity in one ISO week
+     *
+     * @param isoWeek The week, from getIsoWeek()
+     */
+    public synchronized int getWeekMinutes(int isoWeek, int activityType) {
+        if (isoWeek < 0 || !holds(WEEK_KEYS, isoWeek % WEEK_SLOTS, isoWeek)) {
+            return 0;
+        }
+        return mBuffer.getShort(WEEK_CELLS + 2 * (isoWeek % WEEK_SLOTS * ActivityTypes.COUNT
+                + activityType));
+    }
+
+    /**
+     * Add up the minutes of an activity over a range of days, for example the last 90.
+     * Days older than the day ring count as 0.
+     *
+     * @param firstDay The first epoch day of the range
+     * @param lastDay The last epoch day of the range, included
+     */
+    public synchronized int sumDays(int firstDay, int lastDay, int activityType) {
+        int total = 0;
+        for (int day = Math.max(firstDay, lastDay - DAY_SLOTS + 1); day <= lastDay; day++) {
+            total += getDayMinutes(day, activityType);
+        }
+        return total;
+    }
+
+    /**
+     * Write the mapped cells to storage
+     */
+    public synchronized void flush() {
+        if (mBuffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) mBuffer).force();
+        }
+    }
+
+    /**
+     * Number the hours from the start of epoch day 0
+     */
+    public static int getEpochHour(int epochDay, int minuteOfDay) {
+        return epochDay * 24 + minuteOfDay / 60;
+    }
+
+    /**
+     * Number the ISO weeks, which start on Monday, from the week of 1970-01-01
+     */
+    public static int getIsoWeek(int epochDay) {
+
+        // 1970-01-01 was a Thursday, three days after the Monday that starts its week
+        return (epochDay + 3) / 7;
+    }
+
+    /**
+     * Make a cell hold a period, clearing it if it held an older one
+     *
+     * @return false if the cell already holds a newer period, which keeps it
+     */
+    private boolean claim(int keysOffset, int cellsOffset, int cellSize, int slot, int period) {
+        int key = mBuffer.getInt(keysOffset + 4 * slot);
+        if (key == period + 1) {
+            return true;
+        } else if (key > period + 1) {
+            return false;
+        }
+
+        int start = cellsOffset + slot * cellSize;
+        for (int i = start; i < start + cellSize; i++) {
+            mBuffer.put(i, (byte) 0);
+        }
+        mBuffer.putInt(keysOffset + 4 * slot, period + 1);
+        return true;
+    }
+
+    private boolean holds(int keysOffset, int slot, int period) {
+        return mBuffer.getInt(keysOffset + 4 * slot) == period + 1;
+    }
+}
@@ -0,0 +1,18 @@
+package com.janacare.walkmeter;
+
+/**
+ * Receives the sessions found by a SessionSegmenter
+ */
+public interface SessionListener {
+
+    /**
+     * Called when a session has ended
+     *
+     * @param startMillis Time of the first detection of the session
+     * @param endMillis Time of its last detection
+     * @param activityType The activity of the session (see ActivityTypes)
+     * @param meanConfidence The mean confidence of its detections, 0 to 100
+     */
+    void onSessionClosed(long startMillis, long endMillis, int activityType,
+            int meanConfidence);
+}
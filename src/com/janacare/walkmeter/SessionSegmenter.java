@@ -0,0 +1,176 @@
+package com.janacare.walkmeter;
+
+/**
+ * Finds sessions of one activity, such as walks, in the stream of detections.
+ * <p>
+ * A session goes on while its activity keeps being detected. Detections of other activities
+ * are tolerated until the activity has not been seen for longer than the gap tolerance, so
+ * a short stop at a crossing doesn't split a walk. The session then ends at its last
+ * detection, and the run of the other activity seen since becomes the next session. Sessions
+ * shorter than the minimum duration are dropped.
+ * <p>
+ * This class has no Android dependencies, so it can be driven from a plain JVM.
+ */
+public class SessionSegmenter {
+
+    // Default longest gap in a session
+    public static final long DEFAULT_GAP_TOLERANCE_MILLIS = 120000;
+
+    // Default shortest session kept
+    public static final long DEFAULT_MIN_DURATION_MILLIS = 60000;
+
+    // The longest time without the session's activity before the session ends
+    private final long mGapToleranceMillis;
+
+    // Sessions shorter than this are dropped
+    private final long mMinDurationMillis;
+
+    // Told about every session kept
+    private SessionListener[] mListeners = new SessionListener[0];
+
+    // The session going on: its type, or -1 if none, its first and last detection and the
+    // sum and count of its confidences
+    private int mType = -1;
+    private long mStart;
+    private long mLast;
+    private long mConfidenceSum;
+    private int mSamples;
+
+    // The run of another activity since the session's last detection, in the same form
+    private int mPendingType = -1;
+    private long mPendingStart;
+    private long mPendingLast;
+    private long mPendingConfidenceSum;
+    private int mPendingSamples;
+
+    public SessionSegmenter() {
+        this(DEFAULT_GAP_TOLERANCE_MILLIS, DEFAULT_MIN_DURATION_MILLIS);
+    }
+
+    /**
+     * @param gapToleranceMillis The longest time without the session's activity before the
+     *        session ends
+     * @param minDurationMillis Sessions shorter than this are dropped
+     */
+    public SessionSegmenter(long gapToleranceMillis, long minDurationMillis) {
+        if (gapToleranceMillis < 0 || minDurationMillis < 0) {
+            throw new IllegalArgumentException("Invalid session limits " + gapToleranceMillis
+                    + ", " + minDurationMillis);
+        }
+        mGapToleranceMillis = gapToleranceMillis;
+        mMinDurationMillis = minDurationMillis;
+    }
+
+    /**
+     * Register a listener for the sessions kept from now on
+     */
+    public synchronized void addSessionListener(SessionListener listener) {
+        SessionListener[] listeners = new SessionListener[mListeners.length + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+        listeners[mListeners.length] = listener;
+        mListeners = listeners;
+    }
+
+    /**
+     * Feed one detection. Detections must be in time order.
+     *
+     * @param timestampMillis Wall clock time of the detection
+     * @param activityType The most probable activity (see ActivityTypes)
+     * @param confidence The confidence of the most probable activity, 0 to 100
+     */
+    public synchronized void process(long timestampMillis, int activityType, int confidence) {
+        if (mType < 0) {
+            start(timestampMillis, activityType, confidence);
+            return;
+        }
+        if (timestampMillis < mLast) {
+            return;
+        }
+
+        boolean expired = timestampMillis - mLast > mGapToleranceMillis;
+        if (activityType == mType) {
+            if (expired) {
+                closeSession();
+                start(timestampMillis, activityType, confidence);
+            } else {
+                mLast = timestampMillis;
+                mConfidenceSum += confidence;
+                mSamples++;
+                mPendingType = -1;
+            }
+            return;
+        }
+
+        if (activityType == mPendingType) {
+            mPendingLast = timestampMillis;
+            mPendingConfidenceSum += confidence;
+            mPendingSamples++;
+        } else {
+            mPendingType = activityType;
+            mPendingStart = timestampMillis;
+            mPendingLast = timestampMillis;
+            mPendingConfidenceSum = confidence;
+            mPendingSamples = 1;
+        }
+
+        if (expired) {
+
+            // The other activity has lasted long enough to become the session
+            closeSession();
+            mType = mPendingType;
+            mStart = mPendingStart;
+            mLast = mPendingLast;
+            mConfidenceSum = mPendingConfidenceSum;
+            mSamples = mPendingSamples;
+            mPendingType = -1;
+        }
+    }
+
+    /**
+     * End the session if its activity has not been seen within the gap tolerance of the
+     * given time, for example when detections have stopped
+     *
+     * @param nowMillis Wall clock time now
+     */
+    public synchronized void closeIdle(long nowMillis) {
+        if (mType >= 0 && nowMillis - mLast > mGapToleranceMillis) {
+            closeSession();
+            mType = -1;
+            mPendingType = -1;
+        }
+    }
+
+    /**
+     * Get the activity of the session going on, or -1 if there is none
+     */
+    public synchronized int getCurrentType() {
+        return mType;
+    }
+
+    /**
+     * Get the first detection of the session going on
+     */
+    public synchronized long getCurrentStart() {
+        return mStart;
+    }
+
+    private void start(long timestampMillis, int activityType, int confidence) {
+        mType = activityType;
+        mStart = timestampMillis;
+        mLast = timestampMillis;
+        mConfidenceSum = confidence;
+        mSamples = 1;
+        mPendingType = -1;
+    }
+
+    private void closeSession() {
+        if (mLast - mStart < mMinDurationMillis) {
+            return;
+        }
+        int meanConfidence = (int) (mConfidenceSum / mSamples);
+        SessionListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onSessionClosed(mStart, mLast, mType, meanConfidence);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.janacare.walkmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The sessions found by a SessionSegmenter, sorted by start in a memory-mapped file.
+ * <p>
+ * The file has a 16 byte header (magic, number of sessions), followed by one 16 byte record
+ * per session: the start in milliseconds, the length in seconds, the activity type and the
+ * mean confidence. Sessions don't overlap, so both starts and ends are sorted and the
+ * sessions in a time range are found with one binary search, such as the walks of a month.
+ */
+public class SessionStore implements SessionListener {
+
+    // Size of the file header in bytes
+    private static final int HEADER_SIZE = 16;
+
+    // Size of one record in bytes
+    private static final int RECORD_SIZE = 16;
+
+    // Marks the start of the file ("WKW1")
+    private static final int FILE_MAGIC = 0x574B5731;
+
+    // Offsets in the header
+    private static final int COUNT_OFFSET = 4;
+
+    // Offsets in a record
+    private static final int DURATION_OFFSET = 8;
+    private static final int TYPE_OFFSET = 12;
+    private static final int CONFIDENCE_OFFSET = 13;
+
+    // The mapping grows by this many records at a time
+    private static final int GROWTH_RECORDS = 256;
+
+    // Store the session file handle
+    private final File mFile;
+
+    // Open file and its mapping, or null while the store is closed
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    // Number of sessions, and the number that fit in the current mapping
+    private int mCount;
+    private int mCapacity;
+
+    /**
+     * Create a store kept in the given file. The file is opened when first used.
+     *
+     * @param file The session file
+     */
+    public SessionStore(File file) {
+        mFile = file;
+    }
+
+    @Override
+    public void onSessionClosed(long startMillis, long endMillis, int activityType,
+            int meanConfidence) {
+        try {
+            add(startMillis, endMillis, activityType, meanConfidence);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Add a session. Sessions normally arrive in order and are appended; a session that
+     * starts before the last one is moved into place.
+     */
+    public synchronized void add(long startMillis, long endMillis, int activityType,
+            int meanConfidence) throws IOException {
+        open();
+        if (mCount == mCapacity) {
+            map(mCapacity + GROWTH_RECORDS);
+        }
+
+        int index = mCount;
+        while (index > 0 && getStart(index - 1) > startMillis) {
+            index--;
+        }
+        for (int i = mCount; i > index; i--) {
+            copyRecord(i - 1, i);
+        }
+
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        long seconds = (endMillis - startMillis) / ActivityUtils.MILLISECONDS_PER_SECOND;
+        mBuffer.putLong(offset, startMillis);
+        mBuffer.putInt(offset + DURATION_OFFSET, (int) Math.min(seconds, Integer.MAX_VALUE));
+        mBuffer.put(offset + TYPE_OFFSET, (byte) activityType);
+        mBuffer.put(offset + CONFIDENCE_OFFSET, (byte) meanConfidence);
+        mCount++;
+        mBuffer.putInt(COUNT_OFFSET, mCount);
+    }
+
+    /**
+     * Get the number of sessions
+     */
+    public synchronized int size() throws IOException {
+        open();
+        return mCount;
+    }
+
+    /**
+     * Find the first session that ends after a time
+     *
+     * @param timeMillis Wall clock time
+     * @return The index of the session, or size() if every session ended by then
+     */
+    public synchronized int search(long timeMillis) throws IOException {
+        open();
+
+        // Ends are sorted like starts, so search on the end directly
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEnd(mid) <= timeMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Count the sessions of an activity that overlap a time range
+     *
+     * @param fromMillis Start of the range
+     * @param toMillis End of the range
+     * @param activityType The activity, or -1 for every activity
+     */
+    public synchronized int count(long fromMillis, long toMillis, int activityType)
+            throws IOException {
+        int count = 0;
+        for (int i = search(fromMillis); i < mCount && getStart(i) < toMillis; i++) {
+            if (activityType < 0 || getType(i) == activityType) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Add up the time spent in sessions of an activity within a time range. Sessions at
+     * the edges are cut to the range.
+     *
+     * @param fromMillis Start of the range
+     * @param toMillis End of the range
+     * @param activityType The activity, or -1 for every activity
+     */
+    public synchronized long getTotalMillis(long fromMillis, long toMillis, int activityType)
+            throws IOException {
+        long total = 0;
+        for (int i = search(fromMillis); i < mCount && getStart(i) < toMillis; i++) {
+            if (activityType < 0 || getType(i) == activityType) {
+                total += Math.min(getEnd(i), toMillis) - Math.max(getStart(i), fromMillis);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the first detection of a session
+     */
+    public synchronized long getStart(int index) throws IOException {
+        open();
+        return mBuffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+    }
+
+    /**
+     * Get the last detection of a session, to the second
+     */
+    public synchronized long getEnd(int index) throws IOException {
+        open();
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        return mBuffer.getLong(offset) + (long) mBuffer.getInt(offset + DURATION_OFFSET)
+                * ActivityUtils.MILLISECONDS_PER_SECOND;
+    }
+
+    /**
+     * Get the activity of a session (see ActivityTypes)
+     */
+    public synchronized int getType(int index) throws IOException {
+        open();
+        return mBuffer.get(HEADER_SIZE + index * RECORD_SIZE + TYPE_OFFSET);
+    }
+
+    /**
+     * Get the mean confidence of a session, 0 to 100
+     */
+    public synchronized int getMeanConfidence(int index) throws IOException {
+        open();
+        return mBuffer.get(HEADER_SIZE + index * RECORD_SIZE + CONFIDENCE_OFFSET);
+    }
+
+    /**
+     * Write the mapped sessions to storage
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Close the file. The store opens it again when it is next used.
+     */
+    public synchronized void close() throws IOException {
+        if (mRandomAccessFile != null) {
+            flush();
+            mBuffer = null;
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            mCount = 0;
+            mCapacity = 0;
+        }
+    }
+
+    private void copyRecord(int from, int to) {
+        int source = HEADER_SIZE + from * RECORD_SIZE;
+        int target = HEADER_SIZE + to * RECORD_SIZE;
+        mBuffer.putLong(target, mBuffer.getLong(source));
+        mBuffer.putLong(target + 8, mBuffer.getLong(source + 8));
+    }
+
+    /**
+     * Open and map the file, creating it if needed
+     */
+    private void open() throws IOException {
+        if (mRandomAccessFile != null) {
+            return;
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long length = mRandomAccessFile.length();
+        int records = length < HEADER_SIZE ? 0 : (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+        map(Math.max(records, GROWTH_RECORDS));
+
+        if (length < HEADER_SIZE || mBuffer.getInt(0) != FILE_MAGIC) {
+
+            // A new or unreadable file starts out empty
+            mBuffer.putInt(0, FILE_MAGIC);
+            mBuffer.putInt(COUNT_OFFSET, 0);
+            mCount = 0;
+        } else {
+            mCount = Math.max(0, Math.min(mBuffer.getInt(COUNT_OFFSET), records));
+        }
+    }
+
+    /**
+     * Map enough of the file to hold the given number of records
+     */
+    private void map(int capacity) throws IOException {
+        FileChannel channel = mRandomAccessFile.getChannel();
+        mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        mCapacity = capacity;
+    }
+}
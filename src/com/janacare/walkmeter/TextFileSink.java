@@ -0,0 +1,139 @@
+package com.janacare.walkmeter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * An ActivitySink that appends the formatted log lines to a text file. The file and its
+ * directory are created on the first write, and the file stays open. If the file can't be
+ * opened or a write fails, for example while the storage is unmounted, the next write
+ * tries to open it again. Lines are buffered and flushed after a number of lines or after
+ * some time has passed.
+ */
+public class TextFileSink implements ActivitySink {
+
+    // Store the text file handle
+    private final File mFile;
+
+    // Flush after this many lines, or when the oldest buffered line is this old
+    private final int mFlushLines;
+    private final long mFlushIntervalMillis;
+
+    // The open file, or null until the next write opens it
+    private Writer mWriter;
+
+    // Set once the sink is closed, so it isn't opened again
+    private boolean mClosed;
+
+    // Lines written since the last flush, and the time of the last flush
+    private int mPendingLines;
+    private long mLastFlushTime;
+
+    /**
+     * Create a sink that appends to a text file. The file is opened on the first write.
+     *
+     * @param file The text file
+     * @param flushLines Flush after this many lines
+     * @param flushIntervalMillis Flush when the last flush is at least this old
+     */
+    public TextFileSink(File file, int flushLines, long flushIntervalMillis) {
+        mFile = file;
+        mFlushLines = flushLines;
+        mFlushIntervalMillis = flushIntervalMillis;
+        mLastFlushTime = System.currentTimeMillis();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public boolean needsLine() {
+        return true;
+    }
+
+    @Override
+    public void write(long timestampMillis, int activityType, int confidence, LogLineEncoder line)
+            throws IOException {
+        if (!open()) {
+            return;
+        }
+
+        try {
+            line.writeTo(mWriter);
+            mWriter.write('\n');
+        } catch (IOException e) {
+            discardWriter();
+            throw e;
+        }
+        mPendingLines++;
+
+        if (mPendingLines >= mFlushLines
+                || System.currentTimeMillis() - mLastFlushTime >= mFlushIntervalMillis) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mPendingLines = 0;
+        mLastFlushTime = System.currentTimeMillis();
+        if (mWriter != null) {
+            try {
+                mWriter.flush();
+            } catch (IOException e) {
+                discardWriter();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        if (mWriter != null) {
+            Writer writer = mWriter;
+            mWriter = null;
+            writer.close();
+        }
+    }
+
+    /**
+     * Open the file for appending, creating it and its directory if needed
+     *
+     * @return false if the sink is closed
+     * @throws IOException if the file can't be opened. The next write tries again.
+     */
+    private boolean open() throws IOException {
+        if (mWriter != null) {
+            return true;
+        }
+        if (mClosed) {
+            return false;
+        }
+
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir.getAbsolutePath());
+        }
+        mWriter = new BufferedWriter(new FileWriter(mFile, true));
+        return true;
+    }
+
+    /**
+     * Drop a writer that failed, so the next write opens the file again. Its buffered
+     * lines are lost.
+     */
+    private void discardWriter() {
+        Writer writer = mWriter;
+        mWriter = null;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // The writer already failed, there is nothing more to do with it
+        }
+    }
+}
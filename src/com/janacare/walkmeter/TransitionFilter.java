@@ -0,0 +1,156 @@
+package com.janacare.walkmeter;
+
+/**
+ * Debounces the most probable activity, so that only real changes of activity are saved.
+ * <p>
+ * The filter holds a stable activity. Another activity replaces it only after it has been
+ * the most probable one, with at least the switch confidence, in every detection for the
+ * minimum dwell time. The switch confidence is the usual 50% plus a margin, so a classifier
+ * hovering around 50% between two activities can't flip the stable one back and forth. The
+ * filter counts the changes of the raw most probable activity against the transitions it
+ * lets through, which shows how many writes it saved.
+ * <p>
+ * This class has no Android dependencies, so it can be driven from a plain JVM.
+ */
+public class TransitionFilter {
+
+    // Confidence at which an activity is taken as detected
+    public static final int BASE_CONFIDENCE = 50;
+
+    // Default margin over BASE_CONFIDENCE needed to switch activity
+    public static final int DEFAULT_CONFIDENCE_MARGIN = 10;
+
+    // Default time another activity must last before it is taken, two detection intervals
+    public static final long DEFAULT_MIN_DWELL_MILLIS =
+            2L * ActivityUtils.DETECTION_INTERVAL_MILLISECONDS;
+
+    // Time another activity must last before it is taken
+    private final long mMinDwellMillis;
+
+    // Confidence another activity needs in each detection to count towards a switch
+    private final int mSwitchConfidence;
+
+    // The stable activity, or -1 before the first one
+    private int mStableType = -1;
+    private long mStableSince;
+
+    // The activity that may replace the stable one, or -1 if none, and its first detection
+    private int mCandidateType = -1;
+    private long mCandidateSince;
+
+    // The most probable activity of the last detection
+    private int mLastRawType = -1;
+
+    // Detections seen, changes of the raw activity and transitions let through
+    private long mDetections;
+    private long mRawChanges;
+    private long mTransitions;
+
+    public TransitionFilter() {
+        this(DEFAULT_MIN_DWELL_MILLIS, DEFAULT_CONFIDENCE_MARGIN);
+    }
+
+    /**
+     * @param minDwellMillis Time another activity must last before it is taken
+     * @param confidenceMargin Margin over BASE_CONFIDENCE another activity needs in each
+     *        detection to count towards a switch
+     */
+    public TransitionFilter(long minDwellMillis, int confidenceMargin) {
+        if (minDwellMillis < 0 || confidenceMargin < 0
+                || BASE_CONFIDENCE + confidenceMargin > 100) {
+            throw new IllegalArgumentException("Invalid filter settings " + minDwellMillis
+                    + ", " + confidenceMargin);
+        }
+        mMinDwellMillis = minDwellMillis;
+        mSwitchConfidence = BASE_CONFIDENCE + confidenceMargin;
+    }
+
+    /**
+     * Feed one detection. Detections must be in time order.
+     *
+     * @param timestampMillis Wall clock time of the detection
+     * @param activityType The most probable activity (see ActivityTypes)
+     * @param confidence The confidence of the most probable activity, 0 to 100
+     * @return true if the stable activity changed and should be saved
+     */
+    public synchronized boolean process(long timestampMillis, int activityType,
+            int confidence) {
+        mDetections++;
+        if (mLastRawType >= 0 && activityType != mLastRawType) {
+            mRawChanges++;
+        }
+        mLastRawType = activityType;
+
+        // The first confident detection sets the stable activity
+        if (mStableType < 0) {
+            if (confidence < BASE_CONFIDENCE) {
+                return false;
+            }
+            return accept(timestampMillis, activityType);
+        }
+
+        if (activityType == mStableType || confidence < mSwitchConfidence) {
+            mCandidateType = -1;
+            return false;
+        }
+        if (activityType != mCandidateType) {
+            mCandidateType = activityType;
+            mCandidateSince = timestampMillis;
+        }
+        if (timestampMillis - mCandidateSince < mMinDwellMillis) {
+            return false;
+        }
+        return accept(mCandidateSince, activityType);
+    }
+
+    /**
+     * Get the stable activity, or -1 before the first confident detection
+     */
+    public synchronized int getStableType() {
+        return mStableType;
+    }
+
+    /**
+     * Get the time the stable activity was first detected
+     */
+    public synchronized long getStableSince() {
+        return mStableSince;
+    }
+
+    /**
+     * Get the number of detections seen
+     */
+    public synchronized long getDetectionCount() {
+        return mDetections;
+    }
+
+    /**
+     * Get the number of times the raw most probable activity changed, the writes made
+     * without the filter
+     */
+    public synchronized long getRawChangeCount() {
+        return mRawChanges;
+    }
+
+    /**
+     * Get the number of transitions let through, including the first activity
+     */
+    public synchronized long getTransitionCount() {
+        return mTransitions;
+    }
+
+    /**
+     * Get the number of raw changes that didn't become a transition
+     */
+    public synchronized long getSuppressedCount() {
+        return Math.max(0, mRawChanges - Math.max(0, mTransitions - 1));
+    }
+
+    private boolean accept(long sinceMillis, int activityType) {
+        mStableType = activityType;
+        mStableSince = sinceMillis;
+        mCandidateType = -1;
+        mTransitions++;
+        return true;
+    }
+}